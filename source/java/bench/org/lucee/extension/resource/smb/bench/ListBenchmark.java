@@ -0,0 +1,72 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import lucee.commons.io.res.Resource;
+
+import org.lucee.extension.resource.smb.SMBResourceProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * listing of directories with 10, 1000 and 100000 entries, the directories are created once and kept
+ * on the share for later runs
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ListBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	public int entries;
+
+	private SMBResourceProvider provider;
+	private String dir;
+
+	@Setup
+	public void setup() throws IOException {
+		provider = SMBBench.provider();
+		dir = SMBBench.fixture(provider, entries).getAbsolutePath();
+	}
+
+	@Benchmark
+	public Resource[] listResources() {
+		return provider.getResource(dir).listResources();
+	}
+
+	@Benchmark
+	public String[] list() {
+		return provider.getResource(dir).list();
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import lucee.commons.io.res.Resource;
+
+import org.lucee.extension.resource.smb.SMBResourceProvider;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * read and write throughput of a small (4KB) and a large (64MB) file, besides the operations per
+ * second the transferred bytes per second are reported as secondary metric "bytes"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class ReadWriteBenchmark {
+
+	@Param({ "4096", "67108864" })
+	public long size;
+
+	private SMBResourceProvider provider;
+	private Resource dir;
+	private String source;
+	private String target;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public long bytes;
+		private final byte[] buffer = new byte[64 * 1024];
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		provider = SMBBench.provider();
+		dir = SMBBench.directory(provider, "io");
+		Resource res = dir.getRealResource("source.bin");
+		SMBBench.write(res, size);
+		source = res.getAbsolutePath();
+		target = dir.getRealResource("target.bin").getAbsolutePath();
+	}
+
+	@TearDown
+	public void tearDown() {
+		SMBBench.cleanup(dir);
+	}
+
+	@Benchmark
+	public void read(Bytes counter) throws IOException {
+		counter.bytes += SMBBench.read(provider.getResource(source), counter.buffer);
+	}
+
+	@Benchmark
+	public void write(Bytes counter) throws IOException {
+		SMBBench.write(provider.getResource(target), size);
+		counter.bytes += size;
+	}
+}
@@ -0,0 +1,361 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import lucee.commons.io.res.Resource;
+
+import org.lucee.extension.resource.smb.SMBResourceLock;
+import org.lucee.extension.resource.smb.SMBResourceProvider;
+
+/**
+ * load driver that simulates many request threads using one provider, unlike the JMH benchmarks it
+ * shows contention on the provider lock, the contexts and the transport pool. Every thread picks an
+ * operation (stat, read, write, list) by the configured weights, all threads share the same files.
+ * For every thread count the throughput and the p50/p99/p999 latency per operation are reported and
+ * written as JSON.
+ * 
+ * configured with system properties:
+ * <ul>
+ * <li>smb.load.threads, comma separated thread counts (default 1,8,32,128)</li>
+ * <li>smb.load.threads.type, platform, virtual or both (default platform), virtual threads need Java
+ * 21</li>
+ * <li>smb.load.duration/smb.load.warmup, seconds per run (default 30/5)</li>
+ * <li>smb.load.mix, weights of the operations (default stat=60,read=25,write=10,list=5)</li>
+ * <li>smb.load.files/smb.load.file-size, files used by read, write and stat (default 100/16384)</li>
+ * <li>smb.load.result, JSON file with the results (default loadtest.json)</li>
+ * </ul>
+ * the share and the provider arguments are set as for the benchmarks, see SMBBench
+ */
+public class SMBLoadTest {
+
+	public enum Operation {
+		STAT, READ, WRITE, LIST
+	}
+
+	private final SMBResourceProvider provider;
+	private final Resource dir;
+	private final String[] files;
+	private final long fileSize;
+	private final int[] weights;
+	private final int totalWeight;
+
+	public SMBLoadTest(SMBResourceProvider provider, Resource dir, int files, long fileSize, int[] weights) throws IOException {
+		this.provider = provider;
+		this.dir = dir;
+		this.fileSize = fileSize;
+		this.weights = weights;
+		int total = 0;
+		for (int w: weights) {
+			total += w;
+		}
+		if (total <= 0) throw new IllegalArgumentException("at least one operation needs a weight above 0");
+		this.totalWeight = total;
+		this.files = new String[files];
+		for (int i = 0; i < files; i++) {
+			Resource file = dir.getRealResource("file" + i + ".bin");
+			SMBBench.write(file, fileSize);
+			this.files[i] = file.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * runs the mix with the given number of threads, the warmup is not part of the result
+	 */
+	public Result run(int threads, boolean virtual, long warmupMillis, long durationMillis) throws InterruptedException {
+		ExecutorService executor = virtual ? _virtualExecutor() : Executors.newFixedThreadPool(threads);
+		if (executor == null) return null;
+		try {
+			_run(executor, threads, warmupMillis);
+			SMBResourceLock lock = provider.getLock();
+			long waits = lock.getWaitCount();
+			long waitTime = lock.getWaitTime();
+			Recorder[] recorders = _run(executor, threads, durationMillis);
+			return new Result(threads, virtual, durationMillis, recorders, lock.getWaitCount() - waits, lock.getWaitTime() - waitTime, provider.getContextCount(),
+					provider.getServerCredentialCount());
+		}
+		finally {
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private Recorder[] _run(ExecutorService executor, int threads, long durationMillis) throws InterruptedException {
+		Recorder[] recorders = new Recorder[threads];
+		CountDownLatch done = new CountDownLatch(threads);
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		for (int i = 0; i < threads; i++) {
+			Recorder recorder = recorders[i] = new Recorder();
+			executor.execute(() -> {
+				try {
+					_loop(recorder, end);
+				}
+				finally {
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		return recorders;
+	}
+
+	private void _loop(Recorder recorder, long end) {
+		byte[] buffer = new byte[64 * 1024];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (System.nanoTime() < end) {
+			Operation op = _pick(random.nextInt(totalWeight));
+			String path = files[random.nextInt(files.length)];
+			long start = System.nanoTime();
+			boolean failed = false;
+			try {
+				switch (op) {
+				case STAT:
+					Resource res = provider.getResource(path);
+					if (res.exists()) res.length();
+					break;
+				case READ:
+					SMBBench.read(provider.getResource(path), buffer);
+					break;
+				case WRITE:
+					SMBBench.write(provider.getResource(path), fileSize);
+					break;
+				case LIST:
+					provider.getResource(dir.getAbsolutePath()).listResources();
+					break;
+				}
+			}
+			catch (IOException | RuntimeException e) {
+				failed = true;
+			}
+			recorder.add(op, System.nanoTime() - start, failed);
+		}
+	}
+
+	private Operation _pick(int value) {
+		for (int i = 0; i < weights.length; i++) {
+			value -= weights[i];
+			if (value < 0) return Operation.values()[i];
+		}
+		return Operation.STAT;
+	}
+
+	/**
+	 * virtual threads are only available with Java 21 and later, the harness is compiled for Java 17
+	 */
+	private static ExecutorService _virtualExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * latencies of a single thread, the values are sorted when the run is complete
+	 */
+	private static class Recorder {
+		private final long[][] latencies = new long[Operation.values().length][1024];
+		private final int[] counts = new int[Operation.values().length];
+		private final int[] errors = new int[Operation.values().length];
+
+		void add(Operation op, long nanos, boolean failed) {
+			int i = op.ordinal();
+			if (failed) errors[i]++;
+			if (counts[i] == latencies[i].length) latencies[i] = Arrays.copyOf(latencies[i], counts[i] * 2);
+			latencies[i][counts[i]++] = nanos;
+		}
+	}
+
+	public static class Result {
+		private final int threads;
+		private final boolean virtual;
+		private final long durationMillis;
+		private final long[] counts = new long[Operation.values().length];
+		private final long[] errors = new long[Operation.values().length];
+		private final long[][] latencies = new long[Operation.values().length][];
+		private final long lockWaits;
+		private final long lockWaitTime;
+		private final int contexts;
+		private final int serverCredentials;
+
+		Result(int threads, boolean virtual, long durationMillis, Recorder[] recorders, long lockWaits, long lockWaitTime, int contexts, int serverCredentials) {
+			this.threads = threads;
+			this.virtual = virtual;
+			this.durationMillis = durationMillis;
+			this.lockWaits = lockWaits;
+			this.lockWaitTime = lockWaitTime;
+			this.contexts = contexts;
+			this.serverCredentials = serverCredentials;
+			for (Operation op: Operation.values()) {
+				int i = op.ordinal();
+				for (Recorder r: recorders) {
+					counts[i] += r.counts[i];
+					errors[i] += r.errors[i];
+				}
+				long[] all = new long[(int) counts[i]];
+				int pos = 0;
+				for (Recorder r: recorders) {
+					System.arraycopy(r.latencies[i], 0, all, pos, r.counts[i]);
+					pos += r.counts[i];
+				}
+				Arrays.sort(all);
+				latencies[i] = all;
+			}
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public boolean isVirtual() {
+			return virtual;
+		}
+
+		public long getCount(Operation op) {
+			return counts[op.ordinal()];
+		}
+
+		public long getErrors(Operation op) {
+			return errors[op.ordinal()];
+		}
+
+		/**
+		 * completed operations per second
+		 */
+		public double getThroughput(Operation op) {
+			return counts[op.ordinal()] * 1000D / durationMillis;
+		}
+
+		/**
+		 * latency in microseconds at the given percentile (0-100), -1 if the operation was not executed
+		 */
+		public double getPercentileMicros(Operation op, double percentile) {
+			long[] values = latencies[op.ordinal()];
+			if (values.length == 0) return -1;
+			int index = (int) Math.ceil(percentile / 100D * values.length) - 1;
+			return values[Math.max(0, Math.min(values.length - 1, index))] / 1000D;
+		}
+
+		public long getLockWaits() {
+			return lockWaits;
+		}
+
+		public long getLockWaitTime() {
+			return lockWaitTime;
+		}
+
+		void print(PrintStream out) {
+			out.println(String.format(Locale.ROOT, "%d %s threads, lock waits: %d (%d ms), contexts: %d, server/credential combinations: %d", threads, virtual ? "virtual" : "platform", lockWaits,
+					lockWaitTime, contexts, serverCredentials));
+			out.println(String.format(Locale.ROOT, "  %-6s %10s %8s %10s %10s %10s %10s", "op", "ops/s", "errors", "p50 us", "p99 us", "p999 us", "max us"));
+			for (Operation op: Operation.values()) {
+				if (getCount(op) == 0) continue;
+				out.println(String.format(Locale.ROOT, "  %-6s %10.1f %8d %10.0f %10.0f %10.0f %10.0f", op.name().toLowerCase(Locale.ROOT), getThroughput(op), getErrors(op),
+						getPercentileMicros(op, 50), getPercentileMicros(op, 99), getPercentileMicros(op, 99.9), getPercentileMicros(op, 100)));
+			}
+		}
+
+		String toJSON() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"threads\":").append(threads).append(",\"virtual\":").append(virtual).append(",\"durationMillis\":").append(durationMillis).append(",\"lockWaits\":")
+					.append(lockWaits).append(",\"lockWaitTimeMillis\":").append(lockWaitTime).append(",\"contexts\":").append(contexts).append(",\"serverCredentials\":").append(serverCredentials)
+					.append(",\"operations\":{");
+			boolean first = true;
+			for (Operation op: Operation.values()) {
+				if (getCount(op) == 0) continue;
+				if (!first) sb.append(',');
+				first = false;
+				sb.append('"').append(op.name().toLowerCase(Locale.ROOT)).append("\":")
+						.append(String.format(Locale.ROOT, "{\"count\":%d,\"errors\":%d,\"throughput\":%.2f,\"p50Micros\":%.1f,\"p99Micros\":%.1f,\"p999Micros\":%.1f,\"maxMicros\":%.1f}",
+								getCount(op), getErrors(op), getThroughput(op), getPercentileMicros(op, 50), getPercentileMicros(op, 99), getPercentileMicros(op, 99.9),
+								getPercentileMicros(op, 100)));
+			}
+			return sb.append("}}").toString();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String type = System.getProperty("smb.load.threads.type", "platform");
+		long duration = Long.getLong("smb.load.duration", 30) * 1000;
+		long warmup = Long.getLong("smb.load.warmup", 5) * 1000;
+		int[] weights = _weights(System.getProperty("smb.load.mix", "stat=60,read=25,write=10,list=5"));
+
+		SMBResourceProvider provider = SMBBench.provider();
+		Resource dir = SMBBench.directory(provider, "load");
+		List<Result> results = new ArrayList<Result>();
+		try {
+			SMBLoadTest test = new SMBLoadTest(provider, dir, Integer.getInteger("smb.load.files", 100), Long.getLong("smb.load.file-size", 16384), weights);
+			for (String t: System.getProperty("smb.load.threads", "1,8,32,128").split(",")) {
+				int threads = Integer.parseInt(t.trim());
+				for (boolean virtual: new boolean[] { false, true }) {
+					if (virtual ? "platform".equalsIgnoreCase(type) : "virtual".equalsIgnoreCase(type)) continue;
+					Result result = test.run(threads, virtual, warmup, duration);
+					if (result == null) {
+						System.out.println("virtual threads are not supported by this JVM, run with Java 21 or later");
+						continue;
+					}
+					result.print(System.out);
+					results.add(result);
+				}
+			}
+		}
+		finally {
+			SMBBench.cleanup(dir);
+		}
+
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < results.size(); i++) {
+			if (i > 0) json.append(",\n");
+			json.append(results.get(i).toJSON());
+		}
+		File file = new File(System.getProperty("smb.load.result", "loadtest.json"));
+		Files.write(file.toPath(), json.append("]\n").toString().getBytes(StandardCharsets.UTF_8));
+		System.out.println("results written to " + file.getAbsolutePath());
+		System.exit(0);
+	}
+
+	/**
+	 * parses weights like "stat=60,read=25,write=10,list=5", missing operations get 0
+	 */
+	private static int[] _weights(String mix) {
+		int[] weights = new int[Operation.values().length];
+		for (String entry: mix.split(",")) {
+			int index = entry.indexOf('=');
+			if (index == -1) throw new IllegalArgumentException("invalid entry [" + entry + "] in mix, expected operation=weight");
+			Operation op = Operation.valueOf(entry.substring(0, index).trim().toUpperCase(Locale.ROOT));
+			weights[op.ordinal()] = Integer.parseInt(entry.substring(index + 1).trim());
+		}
+		return weights;
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import lucee.commons.io.res.Resource;
+
+import org.lucee.extension.resource.smb.SMBResourceProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * metadata calls, every invocation resolves the path again like a CFML function (fileExists,
+ * getFileInfo, ...) does, so the caches of the provider are part of the measurement
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StatBenchmark {
+
+	private SMBResourceProvider provider;
+	private Resource dir;
+	private String file;
+	private String missing;
+
+	@Setup
+	public void setup() throws IOException {
+		provider = SMBBench.provider();
+		dir = SMBBench.directory(provider, "stat");
+		Resource res = dir.getRealResource("file.txt");
+		SMBBench.write(res, 1024);
+		file = res.getAbsolutePath();
+		missing = dir.getRealResource("missing.txt").getAbsolutePath();
+	}
+
+	@TearDown
+	public void tearDown() {
+		SMBBench.cleanup(dir);
+	}
+
+	@Benchmark
+	public boolean exists() {
+		return provider.getResource(file).exists();
+	}
+
+	@Benchmark
+	public boolean existsMissing() {
+		return provider.getResource(missing).exists();
+	}
+
+	@Benchmark
+	public boolean isFile() {
+		return provider.getResource(file).isFile();
+	}
+
+	@Benchmark
+	public long length() {
+		return provider.getResource(file).length();
+	}
+}
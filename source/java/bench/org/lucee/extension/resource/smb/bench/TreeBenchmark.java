@@ -0,0 +1,104 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import lucee.commons.io.res.Resource;
+
+import org.lucee.extension.resource.smb.SMBResourceProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * moveTo, copyTo and remove(true), every invocation works on a fresh tree so only single shots are
+ * measured, the tree is built outside of the measurement
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class TreeBenchmark {
+
+	@Param({ "10", "100" })
+	public int files;
+
+	private SMBResourceProvider provider;
+	private Resource dir;
+	private Resource tree;
+	private Resource file;
+	private Resource target;
+	private int counter;
+
+	@Setup
+	public void setup() throws IOException {
+		provider = SMBBench.provider();
+		dir = SMBBench.directory(provider, "tree");
+		file = dir.getRealResource("file.bin");
+		SMBBench.write(file, 1024 * 1024);
+	}
+
+	@Setup(Level.Invocation)
+	public void prepare() throws IOException {
+		counter++;
+		tree = dir.getRealResource("tree" + counter);
+		SMBBench.tree(tree, files);
+		target = dir.getRealResource("target" + counter);
+	}
+
+	@TearDown(Level.Invocation)
+	public void release() {
+		SMBBench.cleanup(tree);
+		SMBBench.cleanup(target);
+	}
+
+	@TearDown
+	public void tearDown() {
+		SMBBench.cleanup(dir);
+	}
+
+	@Benchmark
+	public void moveDirectory() throws IOException {
+		tree.moveTo(target);
+	}
+
+	@Benchmark
+	public void copyFile() throws IOException {
+		file.copyTo(target, false);
+	}
+
+	@Benchmark
+	public void removeDirectory() throws IOException {
+		tree.remove(true);
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent cache with a time to live and an upper bound for the number of entries. A cache
+ * created with a ttl or size of 0 is disabled and never holds anything.
+ */
+public class SMBCache<V> {
+
+	private final Map<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+	private final long ttl;
+	private final int maxSize;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public SMBCache(long ttl, int maxSize) {
+		this.ttl = ttl;
+		this.maxSize = maxSize;
+	}
+
+	public boolean isEnabled() {
+		return ttl > 0 && maxSize > 0;
+	}
+
+	public V get(String key) {
+		if (!isEnabled()) return null;
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		if (entry.expires < System.currentTimeMillis()) {
+			entries.remove(key, entry);
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.value;
+	}
+
+	public void put(String key, V value) {
+		if (!isEnabled()) return;
+		if (entries.size() >= maxSize) _prune();
+		entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+	}
+
+	public void remove(String key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * removes the entry for the given key and all entries for keys below it
+	 */
+	public void removeTree(String key) {
+		entries.remove(key);
+		if (entries.isEmpty()) return;
+		String prefix = key.concat("/");
+		Iterator<String> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix)) it.remove();
+		}
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getTTL() {
+		return ttl;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	private void _prune() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry<V>> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires < now) it.remove();
+		}
+		// still full, drop entries until we have some room again
+		if (entries.size() >= maxSize) {
+			int target = maxSize - Math.max(1, maxSize / 10);
+			it = entries.values().iterator();
+			while (it.hasNext() && entries.size() > target) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	private static final class Entry<V> {
+		private final V value;
+		private final long expires;
+
+		private Entry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import org.codelibs.jcifs.smb.FileNotifyInformation;
+
+import lucee.commons.io.res.Resource;
+
+/**
+ * change reported by the server for a watched directory
+ */
+public class SMBChangeEvent {
+
+	public static enum Type {
+		CREATED, MODIFIED, DELETED, RENAMED_FROM, RENAMED_TO,
+		/**
+		 * the server dropped changes, everything in the watched directory may have changed
+		 */
+		OVERFLOW,
+		/**
+		 * the watch ended because it was closed or failed, it is the last event of a watcher
+		 */
+		CLOSED
+	}
+
+	private final Type type;
+	private final String name;
+	private final Resource resource;
+
+	public SMBChangeEvent(Type type, String name, Resource resource) {
+		this.type = type;
+		this.name = name;
+		this.resource = resource;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * path relative to the watched directory, separated by "/", empty for an overflow or the end of
+	 * the watch
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * resource that changed, the watched directory itself for an overflow or the end of the watch, null
+	 * if the watch was not
+	 * created by a resource
+	 */
+	public Resource getResource() {
+		return resource;
+	}
+
+	@Override
+	public String toString() {
+		return type + ":" + name;
+	}
+
+	static Type toType(int action) {
+		switch (action) {
+		case FileNotifyInformation.FILE_ACTION_ADDED:
+			return Type.CREATED;
+		case FileNotifyInformation.FILE_ACTION_REMOVED:
+		case FileNotifyInformation.FILE_ACTION_REMOVED_BY_DELETE:
+			return Type.DELETED;
+		case FileNotifyInformation.FILE_ACTION_RENAMED_OLD_NAME:
+			return Type.RENAMED_FROM;
+		case FileNotifyInformation.FILE_ACTION_RENAMED_NEW_NAME:
+			return Type.RENAMED_TO;
+		default:
+			return Type.MODIFIED; // also the changes of alternate data streams
+		}
+	}
+}
@@ -0,0 +1,334 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.codelibs.jcifs.smb.CIFSException;
+import org.codelibs.jcifs.smb.SmbResource;
+
+/**
+ * in memory cache for the content of small files. An entry is only served while a change
+ * notification is pending on the directory of the file, the server completes it as soon as
+ * something in the directory changes and all entries of that directory are dropped, similar to a
+ * broken lease. If the notification fails or the directory is no longer watched, its entries are
+ * dropped as well. Nothing is cached before the notification is armed, and when all watches are in
+ * use the one of the directory used least recently is closed. jcifs does not tell when the server
+ * accepted the notification, a change made before is never reported, so the first hit of an entry
+ * compares it with the size and modification date the server returns.
+ */
+public class SMBContentCache {
+
+	private final SMBResourceProvider provider;
+	private final long maxSize;
+	private final long maxFileSize;
+	private final int maxWatches;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Map<String, DirectoryWatch> watches = new ConcurrentHashMap<String, DirectoryWatch>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder breaks = new LongAdder();
+	private long bytes;
+
+	/**
+	 * @param maxSize max number of bytes held by the cache
+	 * @param maxFileSize larger files are never cached
+	 * @param maxWatches max number of directories watched at the same time, files in other
+	 *            directories are not cached
+	 */
+	public SMBContentCache(SMBResourceProvider provider, long maxSize, long maxFileSize, int maxWatches) {
+		this.provider = provider;
+		this.maxSize = maxSize;
+		this.maxFileSize = Math.min(maxFileSize, maxSize);
+		this.maxWatches = maxWatches;
+	}
+
+	/**
+	 * returns the content of the file from the cache or reads it and keeps it for the next call
+	 * 
+	 * @param key cache key of the file, see {@link SMBResourceProvider#toCacheKey}
+	 * @param dir supplies the handle of the directory of the file, only used to set up the watch
+	 * @param attributes supplies the metadata of the file as the server has it right now, not from a
+	 *            cache
+	 * @return null if the file can't be cached, the caller has to open a stream itself
+	 */
+	public InputStream getInputStream(String key, SmbResource file, Supplier<SmbResource> dir, Supplier<SMBFileAttributes> attributes) throws IOException {
+		String dirKey = _dirKey(key);
+		DirectoryWatch watch = watches.get(dirKey);
+		if (watch != null && watch.isArmed()) {
+			Entry entry;
+			synchronized (entries) {
+				entry = entries.get(key);
+			}
+			if (entry != null && !entry.validated) {
+				SMBFileAttributes atts = attributes.get();
+				if (atts.isFile() && atts.length() == entry.data.length && atts.lastModified() == entry.lastModified) entry.validated = true;
+				else {
+					// changed before the server accepted the notification
+					invalidate(key);
+					entry = null;
+				}
+			}
+			if (entry != null) {
+				watch.lastUsed = System.nanoTime();
+				hits.increment();
+				return new ByteArrayInputStream(entry.data);
+			}
+		}
+		misses.increment();
+
+		SMBFileAttributes atts = attributes.get();
+		if (!atts.isFile()) return null;
+		long length = atts.length();
+		if (length > maxFileSize) return null;
+		if (watch == null || !watch.isActive()) watch = _watch(dirKey, dir);
+		// a change before the notification is armed would never be reported
+		if (watch == null || !watch.isArmed()) return null;
+		watch.lastUsed = System.nanoTime();
+
+		long generation = watch.generation;
+		byte[] data;
+		try (InputStream is = file.openInputStream()) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream((int) length);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, n);
+			}
+			data = baos.toByteArray();
+		}
+		// only keep what we read if nothing changed in the directory since the watch was checked
+		if (watch.isArmed() && watch.generation == generation && data.length == length && data.length <= maxFileSize) {
+			_put(key, new Entry(dirKey, data, atts.lastModified()));
+			// the watch may have been broken while we added the entry
+			if (!watch.isArmed() || watch.generation != generation) _dropDirectory(dirKey);
+		}
+		return new ByteArrayInputStream(data);
+	}
+
+	/**
+	 * drops the entry of a path and of everything below it
+	 */
+	public void invalidate(String key) {
+		String prefix = key.concat("/");
+		synchronized (entries) {
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Entry> e = it.next();
+				if (e.getKey().equals(key) || e.getKey().startsWith(prefix)) {
+					bytes -= e.getValue().data.length;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * drops all entries and stops all watches
+	 */
+	public void clear() {
+		for (DirectoryWatch watch: watches.values()) {
+			watch.watcher.close();
+		}
+		watches.clear();
+		synchronized (entries) {
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * number of bytes held by the cache
+	 */
+	public long getBytes() {
+		synchronized (entries) {
+			return bytes;
+		}
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * number of times the entries of a directory were dropped because the server reported a change
+	 * or the watch failed
+	 */
+	public long getBreaks() {
+		return breaks.sum();
+	}
+
+	/**
+	 * number of directories watched right now
+	 */
+	public int getWatchCount() {
+		return watches.size();
+	}
+
+	private void _put(String key, Entry entry) {
+		synchronized (entries) {
+			Entry old = entries.put(key, entry);
+			if (old != null) bytes -= old.data.length;
+			bytes += entry.data.length;
+			Iterator<Entry> it = entries.values().iterator();
+			while (bytes > maxSize && it.hasNext()) {
+				bytes -= it.next().data.length;
+				it.remove();
+			}
+		}
+	}
+
+	private void _dropDirectory(String dirKey) {
+		synchronized (entries) {
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry e = it.next();
+				if (e.dirKey.equals(dirKey)) {
+					bytes -= e.data.length;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private DirectoryWatch _watch(String dirKey, Supplier<SmbResource> dir) {
+		synchronized (watches) {
+			DirectoryWatch watch = watches.get(dirKey);
+			if (watch != null && watch.isActive()) return watch;
+			if (watches.size() >= maxWatches && !_evict()) return null;
+			SmbResource d = dir.get();
+			if (d == null) return null;
+			watch = new DirectoryWatch(dirKey);
+			try {
+				watch.watcher = new SMBWatcher(provider, dirKey, d.watch(SMBWatcher.DEFAULT_FILTER, false), null, watch);
+			}
+			catch (CIFSException e) {
+				return null; // the server does not support change notifications, we can't cache
+			}
+			watches.put(dirKey, watch);
+			try {
+				watch.watcher.start(provider.getWatchExecutor());
+			}
+			catch (IOException e) {
+				// all watches of the provider are in use
+				watches.remove(dirKey, watch);
+				return null;
+			}
+			return watch;
+		}
+	}
+
+	/**
+	 * closes the watch of the directory used least recently, its entries are dropped
+	 */
+	private boolean _evict() {
+		DirectoryWatch oldest = null;
+		for (DirectoryWatch watch: watches.values()) {
+			if (oldest == null || watch.lastUsed - oldest.lastUsed < 0) oldest = watch;
+		}
+		if (oldest == null) return false;
+		watches.remove(oldest.dirKey, oldest);
+		oldest.generation++;
+		_dropDirectory(oldest.dirKey);
+		oldest.watcher.close();
+		return true;
+	}
+
+	private static String _dirKey(String key) {
+		int index = key.lastIndexOf('/');
+		return index == -1 ? key : key.substring(0, index);
+	}
+
+	private static class Entry {
+
+		private final String dirKey;
+		private final byte[] data;
+		private final long lastModified;
+		// compared with the server once
+		private volatile boolean validated;
+
+		private Entry(String dirKey, byte[] data, long lastModified) {
+			this.dirKey = dirKey;
+			this.data = data;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * drops the entries of a directory on every change, the entries are only valid while the watcher is
+	 * active
+	 */
+	private class DirectoryWatch implements SMBWatchListener {
+
+		private final String dirKey;
+		private SMBWatcher watcher;
+		private volatile long generation;
+		private volatile long lastUsed = System.nanoTime();
+
+		private DirectoryWatch(String dirKey) {
+			this.dirKey = dirKey;
+		}
+
+		private boolean isActive() {
+			return watcher.isActive();
+		}
+
+		private boolean isArmed() {
+			return watcher.isArmed();
+		}
+
+		@Override
+		public void onChange(SMBChangeEvent event) {
+			generation++;
+			breaks.increment();
+			_dropDirectory(dirKey);
+		}
+
+		@Override
+		public void onClose(IOException error) {
+			generation++;
+			breaks.increment();
+			watches.remove(dirKey, this);
+			_dropDirectory(dirKey);
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.codelibs.jcifs.smb.SmbResource;
+
+/**
+ * read through cache that keeps copies of remote files in a local directory. A copy is used as long
+ * as size and date of the remote file did not change, the remote file is checked at most once per
+ * validation interval. The total size of the copies is limited, the least recently used are removed
+ * first. Every version of a file is written to a new local file, a replaced or removed copy is only
+ * deleted once the last stream reading it is closed. Each cache uses its own sub directory, so
+ * several providers can share the configured directory.
+ */
+public class SMBDiskCache {
+
+	private static final String EXTENSION = ".smbcache";
+	private static final String PREFIX = "smb-";
+	private static final String LOCK = ".lock";
+
+	private final File directory;
+	private final FileChannel lockChannel;
+	private final long maxSize;
+	private final long validationInterval;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder bytesSaved = new LongAdder();
+	private long bytes;
+
+	/**
+	 * @param root local directory for the copies, the cache creates its own sub directory in it. Sub
+	 *            directories left from an earlier run are removed, the ones of caches still in use
+	 *            are kept.
+	 * @param maxSize max number of bytes of all copies together
+	 * @param validationInterval milliseconds a copy is used without checking the remote file, 0 checks
+	 *            on every read
+	 */
+	public SMBDiskCache(File root, long maxSize, long validationInterval) throws IOException {
+		this.maxSize = maxSize;
+		this.validationInterval = validationInterval;
+		if (!root.isDirectory() && !root.mkdirs()) throw new IOException("can't create cache directory [" + root + "]");
+		// without their metadata old copies can't be validated, a sub directory is only in use as long as its lock is held
+		File[] children = root.listFiles();
+		if (children != null) {
+			for (File child: children) {
+				if (child.isDirectory() && child.getName().startsWith(PREFIX)) _deleteUnused(child);
+			}
+		}
+		directory = new File(root, PREFIX + UUID.randomUUID());
+		if (!directory.mkdirs()) throw new IOException("can't create cache directory [" + directory + "]");
+		lockChannel = FileChannel.open(new File(directory, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		lockChannel.lock();
+	}
+
+	/**
+	 * returns a stream on the local copy of the file, the copy is created or renewed if needed
+	 * 
+	 * @param key cache key of the file, see {@link SMBResourceProvider#toCacheKey}
+	 * @param attributes supplies the current size and date of the remote file, as the server has it
+	 *            and not from a cache, otherwise a copy is validated against cached values
+	 * @return null if the file can't be cached, the caller has to open a stream itself
+	 */
+	public InputStream getInputStream(String key, SmbResource file, Supplier<SMBFileAttributes> attributes) throws IOException {
+		long now = System.currentTimeMillis();
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry != null) {
+			boolean fresh = now - entry.validated < validationInterval;
+			if (fresh || _isValid(entry, attributes.get())) {
+				InputStream is = entry.open();
+				if (is != null) {
+					if (!fresh) entry.validated = now;
+					hits.increment();
+					bytesSaved.add(entry.length);
+					return is;
+				}
+			}
+			_remove(key, entry);
+		}
+		misses.increment();
+
+		SMBFileAttributes atts = attributes.get();
+		if (!atts.isFile() || atts.length() > maxSize) return null;
+
+		// a new file for every version, the previous one may still be read
+		File tmp = new File(directory, _name(key) + "." + UUID.randomUUID() + EXTENSION);
+		long length = 0;
+		try {
+			try (InputStream is = file.openInputStream(); OutputStream os = new FileOutputStream(tmp)) {
+				byte[] buffer = new byte[64 * 1024];
+				int n;
+				while ((n = is.read(buffer)) != -1) {
+					os.write(buffer, 0, n);
+					length += n;
+				}
+			}
+			if (length != atts.length()) {
+				// the file changed while it was read, use the copy this once but don't keep it
+				return new FileInputStream(tmp) {
+
+					@Override
+					public void close() throws IOException {
+						super.close();
+						tmp.delete();
+					}
+				};
+			}
+		}
+		catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		entry = new Entry(tmp, atts.length(), atts.lastModified(), now);
+		InputStream is = entry.open();
+		if (is == null) {
+			tmp.delete();
+			return null;
+		}
+		_put(key, entry);
+		return is;
+	}
+
+	/**
+	 * removes the copy of a path and of everything below it
+	 */
+	public void invalidate(String key) {
+		String prefix = key.concat("/");
+		synchronized (entries) {
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Entry> e = it.next();
+				if (e.getKey().equals(key) || e.getKey().startsWith(prefix)) {
+					bytes -= e.getValue().length;
+					e.getValue().discard();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * removes all copies
+	 */
+	public void clear() {
+		synchronized (entries) {
+			for (Entry entry: entries.values()) {
+				entry.discard();
+			}
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * removes all copies and the sub directory, copies still read are deleted when their streams are
+	 * closed
+	 */
+	public void close() {
+		clear();
+		try {
+			lockChannel.close();
+		}
+		catch (IOException e) {
+		}
+		new File(directory, LOCK).delete();
+		directory.delete();
+	}
+
+	/**
+	 * sub directory of this cache
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * number of bytes of all copies
+	 */
+	public long getBytes() {
+		synchronized (entries) {
+			return bytes;
+		}
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public long getValidationInterval() {
+		return validationInterval;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * share of reads served from a local copy, between 0 and 1
+	 */
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * number of bytes that were read from a local copy instead of the server
+	 */
+	public long getBytesSaved() {
+		return bytesSaved.sum();
+	}
+
+	private static boolean _isValid(Entry entry, SMBFileAttributes atts) {
+		return atts.isFile() && atts.length() == entry.length && atts.lastModified() == entry.lastModified;
+	}
+
+	private void _put(String key, Entry entry) {
+		synchronized (entries) {
+			Entry old = entries.put(key, entry);
+			if (old != null) {
+				bytes -= old.length;
+				old.discard();
+			}
+			bytes += entry.length;
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (bytes > maxSize && it.hasNext()) {
+				Map.Entry<String, Entry> e = it.next();
+				if (e.getValue() == entry) continue;
+				bytes -= e.getValue().length;
+				e.getValue().discard();
+				it.remove();
+			}
+		}
+	}
+
+	private void _remove(String key, Entry entry) {
+		synchronized (entries) {
+			if (entries.remove(key, entry)) {
+				bytes -= entry.length;
+				entry.discard();
+			}
+		}
+	}
+
+	/**
+	 * deletes the sub directory of another cache if no cache holds its lock anymore
+	 */
+	private static void _deleteUnused(File dir) {
+		File lockFile = new File(dir, LOCK);
+		if (lockFile.exists()) {
+			try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+				FileLock lock = channel.tryLock();
+				if (lock == null) return; // used by another process
+				lock.release();
+			}
+			catch (OverlappingFileLockException e) {
+				return; // used by another cache of this JVM
+			}
+			catch (IOException e) {
+				return;
+			}
+		}
+		File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child: children) {
+				child.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static String _name(String key) {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b: hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e); // every JVM has SHA-256
+		}
+	}
+
+	/**
+	 * a copy counts the streams reading it, once it is discarded the file is deleted when the last of
+	 * them is closed
+	 */
+	private static class Entry {
+
+		private final File file;
+		private final long length;
+		private final long lastModified;
+		private volatile long validated;
+		private int readers;
+		private boolean discarded;
+
+		private Entry(File file, long length, long lastModified, long validated) {
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.validated = validated;
+		}
+
+		/**
+		 * @return null if the copy was discarded or is gone
+		 */
+		private synchronized InputStream open() {
+			if (discarded) return null;
+			InputStream is;
+			try {
+				is = new FileInputStream(file) {
+
+					private boolean closed;
+
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						}
+						finally {
+							if (!closed) {
+								closed = true;
+								_release();
+							}
+						}
+					}
+				};
+			}
+			catch (IOException e) {
+				return null;
+			}
+			readers++;
+			return is;
+		}
+
+		private synchronized void _release() {
+			if (--readers == 0 && discarded) file.delete();
+		}
+
+		private synchronized void discard() {
+			discarded = true;
+			if (readers == 0) file.delete();
+		}
+	}
+}
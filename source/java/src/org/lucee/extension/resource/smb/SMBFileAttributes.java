@@ -0,0 +1,105 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import org.codelibs.jcifs.smb.CIFSException;
+import org.codelibs.jcifs.smb.SmbResource;
+
+/**
+ * Immutable snapshot of the metadata of a SMB file or directory
+ */
+public final class SMBFileAttributes {
+
+	public static final SMBFileAttributes NOT_EXISTING = new SMBFileAttributes(false, false, 0, 0, 0, 0, 0);
+
+	private final boolean exists;
+	private final boolean directory;
+	private final int attributes;
+	private final long length;
+	private final long lastModified;
+	private final long created;
+	private final long lastAccess;
+
+	public SMBFileAttributes(boolean exists, boolean directory, int attributes, long length, long lastModified) {
+		this(exists, directory, attributes, length, lastModified, 0, 0);
+	}
+
+	public SMBFileAttributes(boolean exists, boolean directory, int attributes, long length, long lastModified, long created, long lastAccess) {
+		this.exists = exists;
+		this.directory = directory;
+		this.attributes = attributes;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.created = created;
+		this.lastAccess = lastAccess;
+	}
+
+	/**
+	 * reads the metadata of the given file, exists() loads all attributes with one request (on SMB2 a
+	 * compounded CREATE and CLOSE returning the attributes), the other getters are answered by jcifs
+	 * from that result as long as "attr-expiration" is not 0
+	 */
+	public static SMBFileAttributes load(SmbResource file) throws CIFSException {
+		if (!file.exists()) return NOT_EXISTING;
+		boolean directory = file.isDirectory();
+		return new SMBFileAttributes(true, directory, file.getAttributes(), directory ? 0 : file.length(), file.lastModified(), file.createTime(), file.lastAccess());
+	}
+
+	public boolean exists() {
+		return exists;
+	}
+
+	public boolean isDirectory() {
+		return exists && directory;
+	}
+
+	public boolean isFile() {
+		return exists && !directory;
+	}
+
+	public int getAttributes() {
+		return attributes;
+	}
+
+	public boolean isFlagSet(int flag) {
+		return (attributes & flag) == flag;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public long lastModified() {
+		return lastModified;
+	}
+
+	public long created() {
+		return created;
+	}
+
+	public long lastAccess() {
+		return lastAccess;
+	}
+
+	@Override
+	public String toString() {
+		if (!exists) return "not existing";
+		return (directory ? "directory" : "file") + " attributes:" + attributes + " length:" + length + " lastModified:" + lastModified;
+	}
+}
@@ -0,0 +1,471 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+import org.codelibs.jcifs.smb.CIFSContext;
+import org.codelibs.jcifs.smb.CIFSException;
+import org.codelibs.jcifs.smb.CloseableIterator;
+import org.codelibs.jcifs.smb.SmbRandomAccess;
+import org.codelibs.jcifs.smb.SmbResource;
+import org.codelibs.jcifs.smb.SmbWatchHandle;
+
+/**
+ * test double for the handles returned by SMBResourceProvider.getFile, every call that can reach
+ * the server is delayed by a fixed latency and transferred data by the given bandwidth, so a LAN
+ * server behaves like a remote one. Requests are counted per method, which allows to assert the
+ * round trips of an operation. Streams, random access files, directory listings, watch handles and
+ * handles created from the context are wrapped as well.
+ * 
+ * What is counted are calls of the jcifs API, not messages on the wire. jcifs keeps the attributes
+ * of a handle for "jcifs.smb.client.attrExpirationPeriod" (5 seconds by default) after exists() or
+ * a listing, the getters it serves from there (exists, isDirectory, isFile, isHidden, getAttributes,
+ * length, lastModified, createTime, lastAccess) are neither counted nor delayed within that period.
+ * Any other call on the handle ends the period, as most of them change the file. A readFully() of a
+ * random access file is a single call although jcifs splits it into several reads. The counts are
+ * therefore exact for attribute queries and a lower bound for large transfers.
+ * 
+ * <pre>
+ * provider.setFileDecorator(new SMBLatencyInjector(20, 10 * 1024 * 1024));
+ * </pre>
+ * 
+ * handles already held by a resource are not affected, see SMBResource.invalidate
+ */
+public class SMBLatencyInjector implements UnaryOperator<SmbResource> {
+
+	private final long latencyNanos;
+	private final long bytesPerSecond;
+	private final Map<String, LongAdder> requests = new ConcurrentHashMap<String, LongAdder>();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	// the wrapper references its context, so it is only held weakly, otherwise the context never
+	// becomes unreachable
+	private final Map<CIFSContext, WeakReference<CIFSContext>> contexts = new WeakHashMap<CIFSContext, WeakReference<CIFSContext>>();
+
+	/**
+	 * @param latencyMillis delay of every request
+	 * @param bytesPerSecond bandwidth of reads and writes, 0 for no limit
+	 */
+	public SMBLatencyInjector(long latencyMillis, long bytesPerSecond) {
+		this.latencyNanos = latencyMillis * 1000000L;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	@Override
+	public SmbResource apply(SmbResource file) {
+		return _wrap(file, false);
+	}
+
+	/**
+	 * @param attributesKnown true if jcifs already holds the attributes of the handle, as for the
+	 *            entries of a listing
+	 */
+	private SmbResource _wrap(SmbResource file, boolean attributesKnown) {
+		if (file == null || _unwrap(file) != file) return file;
+		Handler handler = new Handler(file);
+		if (attributesKnown) handler.attributesLoaded();
+		return (SmbResource) Proxy.newProxyInstance(SMBLatencyInjector.class.getClassLoader(), new Class<?>[] { SmbResource.class }, handler);
+	}
+
+	/**
+	 * total number of requests
+	 */
+	public long getRequestCount() {
+		long count = 0;
+		for (LongAdder adder: requests.values()) {
+			count += adder.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * number of requests of the given method, for example "exists", "openInputStream" or
+	 * "SmbRandomAccess.read"
+	 */
+	public long getRequestCount(String method) {
+		LongAdder adder = requests.get(method);
+		return adder == null ? 0 : adder.sum();
+	}
+
+	/**
+	 * requests by method
+	 */
+	public Map<String, Long> getRequests() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e: requests.entrySet()) {
+			result.put(e.getKey(), e.getValue().sum());
+		}
+		return result;
+	}
+
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	public void reset() {
+		requests.clear();
+		bytesRead.reset();
+		bytesWritten.reset();
+	}
+
+	public long getLatencyMillis() {
+		return latencyNanos / 1000000L;
+	}
+
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * counts a request and waits for its latency plus the transfer time of the given bytes
+	 */
+	private void _request(String method, long bytes) {
+		requests.computeIfAbsent(method, k -> new LongAdder()).increment();
+		long nanos = latencyNanos;
+		if (bytesPerSecond > 0 && bytes > 0) nanos += bytes * 1000000000L / bytesPerSecond;
+		if (nanos <= 0) return;
+		try {
+			Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private CIFSContext _context(CIFSContext context) {
+		if (context == null || Proxy.isProxyClass(context.getClass())) return context;
+		// one wrapper per context, so contexts can still be compared by identity
+		synchronized (contexts) {
+			WeakReference<CIFSContext> ref = contexts.get(context);
+			CIFSContext wrapper = ref == null ? null : ref.get();
+			if (wrapper == null) {
+				wrapper = (CIFSContext) Proxy.newProxyInstance(SMBLatencyInjector.class.getClassLoader(), new Class<?>[] { CIFSContext.class }, new ContextHandler(context));
+				contexts.put(context, new WeakReference<CIFSContext>(wrapper));
+			}
+			return wrapper;
+		}
+	}
+
+	private Object _unwrap(Object obj) {
+		if (obj != null && Proxy.isProxyClass(obj.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(obj);
+			if (handler instanceof Handler && ((Handler) handler).injector() == this) return ((Handler) handler).file;
+		}
+		return obj;
+	}
+
+	private static Object _invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private class Handler implements InvocationHandler {
+		private final SmbResource file;
+		// until when jcifs answers the attribute getters of the handle without a request
+		private volatile long attributesExpire;
+
+		Handler(SmbResource file) {
+			this.file = file;
+		}
+
+		SMBLatencyInjector injector() {
+			return SMBLatencyInjector.this;
+		}
+
+		void attributesLoaded() {
+			CIFSContext context = file.getContext();
+			attributesExpire = context == null ? 0 : System.currentTimeMillis() + context.getConfig().getAttributeCacheTimeout();
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (method.getDeclaringClass() == Object.class) {
+				if (name.equals("equals")) return proxy == args[0] || file.equals(_unwrap(args[0]));
+				return _invoke(file, method, args);
+			}
+			switch (name) {
+			// local calls, no request to the server
+			case "getLocator":
+			case "getName":
+			case "close":
+				return _invoke(file, method, args);
+			case "getContext":
+				return _context(file.getContext());
+			case "resolve":
+				return apply((SmbResource) _invoke(file, method, args));
+			// served from the attributes jcifs keeps per handle
+			case "exists":
+			case "isDirectory":
+			case "isFile":
+			case "isHidden":
+			case "getAttributes":
+			case "length":
+			case "lastModified":
+			case "createTime":
+			case "lastAccess":
+				if (System.currentTimeMillis() < attributesExpire) return _invoke(file, method, args);
+				_request(name, 0);
+				Object value = _invoke(file, method, args);
+				attributesLoaded();
+				return value;
+			}
+			attributesExpire = 0;
+
+			if (args != null) {
+				for (int i = 0; i < args.length; i++) {
+					args[i] = _unwrap(args[i]);
+				}
+			}
+			_request(name, 0);
+			Object result = _invoke(file, method, args);
+			if (result instanceof InputStream) return new DelayedInputStream((InputStream) result);
+			if (result instanceof OutputStream) return new DelayedOutputStream((OutputStream) result);
+			if (result instanceof SmbRandomAccess) return _proxy(SmbRandomAccess.class, result);
+			if (result instanceof SmbWatchHandle) return _proxy(SmbWatchHandle.class, result);
+			if (result instanceof CloseableIterator) return new DelayedIterator((CloseableIterator<?>) result);
+			return result;
+		}
+	}
+
+	private Object _proxy(Class<?> type, Object target) {
+		String prefix = type.getSimpleName() + ".";
+		return Proxy.newProxyInstance(SMBLatencyInjector.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+			String name = method.getName();
+			// only move the file pointer
+			if (method.getDeclaringClass() == Object.class || name.equals("seek") || name.equals("getFilePointer") || name.equals("skipBytes")) return _invoke(target, method, args);
+			Object result = _invoke(target, method, args);
+			long bytes = 0;
+			if (name.startsWith("read")) bytesRead.add(bytes = _bytesRead(name, args, result));
+			else if (name.startsWith("write")) bytesWritten.add(bytes = _bytesWritten(name, args));
+			_request(prefix + name, bytes);
+			return result;
+		});
+	}
+
+	/**
+	 * bytes transferred by a read method of DataInput or SmbRandomAccess
+	 */
+	private static long _bytesRead(String name, Object[] args, Object result) {
+		switch (name) {
+		case "read":
+			if (args == null || args.length == 0) return ((Integer) result) == -1 ? 0 : 1;
+			return Math.max(0, (Integer) result);
+		case "readFully":
+			return args.length == 3 ? (Integer) args[2] : ((byte[]) args[0]).length;
+		case "readBoolean":
+		case "readByte":
+		case "readUnsignedByte":
+			return 1;
+		case "readShort":
+		case "readUnsignedShort":
+		case "readChar":
+			return 2;
+		case "readInt":
+		case "readFloat":
+			return 4;
+		case "readLong":
+		case "readDouble":
+			return 8;
+		case "readLine":
+			// the line terminator is not part of the result, count one byte for it
+			return result == null ? 0 : ((String) result).length() + 1;
+		case "readUTF":
+			return 2 + _utfLength((String) result);
+		}
+		return 0;
+	}
+
+	/**
+	 * bytes transferred by a write method of DataOutput or SmbRandomAccess
+	 */
+	private static long _bytesWritten(String name, Object[] args) {
+		switch (name) {
+		case "write":
+			if (args[0] instanceof byte[]) return args.length == 3 ? (Integer) args[2] : ((byte[]) args[0]).length;
+			return 1;
+		case "writeBoolean":
+		case "writeByte":
+			return 1;
+		case "writeShort":
+		case "writeChar":
+			return 2;
+		case "writeInt":
+		case "writeFloat":
+			return 4;
+		case "writeLong":
+		case "writeDouble":
+			return 8;
+		case "writeBytes":
+			return ((String) args[0]).length();
+		case "writeChars":
+			return 2L * ((String) args[0]).length();
+		case "writeUTF":
+			return 2 + _utfLength((String) args[0]);
+		}
+		return 0;
+	}
+
+	/**
+	 * length of the modified UTF-8 of DataOutput.writeUTF, it only differs from UTF-8 for \0 and
+	 * supplementary characters
+	 */
+	private static long _utfLength(String str) {
+		if (str == null) return 0;
+		long len = str.getBytes(StandardCharsets.UTF_8).length;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == 0) len++;
+			// a pair is 4 bytes in UTF-8 and 6 in modified UTF-8, an unpaired surrogate 1 and 3
+			else if (Character.isSurrogate(c)) {
+				len += 2;
+				if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) i++;
+			}
+		}
+		return len;
+	}
+
+	private class ContextHandler implements InvocationHandler {
+		private final CIFSContext context;
+
+		ContextHandler(CIFSContext context) {
+			this.context = context;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object result = _invoke(context, method, args);
+			if (result instanceof SmbResource) return apply((SmbResource) result);
+			if (result instanceof CIFSContext) return _context((CIFSContext) result);
+			return result;
+		}
+	}
+
+	/**
+	 * the entries of a listing are transferred with the first request, only the handles are wrapped
+	 */
+	private class DelayedIterator implements CloseableIterator<SmbResource> {
+		private final CloseableIterator<?> iterator;
+
+		DelayedIterator(CloseableIterator<?> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public SmbResource next() {
+			return _wrap((SmbResource) iterator.next(), true);
+		}
+
+		@Override
+		public void remove() {
+			iterator.remove();
+		}
+
+		@Override
+		public void close() throws CIFSException {
+			iterator.close();
+		}
+	}
+
+	private class DelayedInputStream extends FilterInputStream {
+
+		DelayedInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) bytesRead.increment();
+			_request("InputStream.read", b == -1 ? 0 : 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) bytesRead.add(n);
+			_request("InputStream.read", Math.max(0, n));
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			_request("InputStream.close", 0);
+			super.close();
+		}
+	}
+
+	private class DelayedOutputStream extends FilterOutputStream {
+
+		DelayedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			bytesWritten.increment();
+			_request("OutputStream.write", 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			bytesWritten.add(len);
+			_request("OutputStream.write", len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			_request("OutputStream.close", 0);
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,434 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters and latency histograms of the SMB operations of a provider, per server and share. The
+ * counters are striped (LongAdder), recording an operation does not lock or allocate.
+ */
+public class SMBMetrics implements SMBMetricsMXBean {
+
+	public static enum Operation {
+		STAT, LIST, OPEN, READ, WRITE, DELETE, RENAME, LOCK_WAIT
+	}
+
+	/**
+	 * bucket i holds durations below 2^i microseconds, the last one everything above
+	 */
+	private static final int BUCKETS = 32;
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	private final Map<String, Share> shares = new ConcurrentHashMap<String, Share>();
+
+	/**
+	 * receives the operations of a resource or a stream
+	 */
+	public static interface Recorder {
+
+		/**
+		 * @param start System.nanoTime() when the operation started
+		 * @param bytes bytes transferred by a READ or WRITE, 0 for the other operations
+		 */
+		public void record(Operation op, long start, boolean failed, long bytes);
+	}
+
+	/**
+	 * wraps a stream, every buffer read is recorded as READ. Single bytes are passed straight through,
+	 * their count is added to the next buffer read or recorded with the close of the stream.
+	 */
+	public static InputStream meter(InputStream is, Recorder recorder) {
+		return new MeteredInputStream(is, recorder);
+	}
+
+	/**
+	 * wraps a stream, every buffer write is recorded as WRITE. Single bytes are passed straight through,
+	 * their count is added to the next buffer write or recorded with the close of the stream.
+	 */
+	public static OutputStream meter(OutputStream os, Recorder recorder) {
+		return new MeteredOutputStream(os, recorder);
+	}
+
+	/**
+	 * stats of a share, resources keep the instance so they don't look it up for every call
+	 */
+	public Share getShare(String server, String share) {
+		String key = server == null ? "" : server.toLowerCase();
+		if (share != null && !share.isEmpty()) key = key.concat("/").concat(share.toLowerCase());
+		return shares.computeIfAbsent(key, Share::new);
+	}
+
+	@Override
+	public List<OperationSnapshot> getOperations() {
+		List<OperationSnapshot> list = new ArrayList<OperationSnapshot>();
+		for (Share share: shares.values()) {
+			for (Operation op: OPERATIONS) {
+				Stats stats = share.stats[op.ordinal()];
+				if (stats.count.sum() > 0) list.add(stats.snapshot(share.name, op));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * same as {@link #getOperations()}, for callers from CFML
+	 */
+	public List<OperationSnapshot> snapshot() {
+		return getOperations();
+	}
+
+	@Override
+	public String[] getShares() {
+		return shares.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public long getBytesRead() {
+		long sum = 0;
+		for (Share share: shares.values()) {
+			sum += share.bytesRead.sum();
+		}
+		return sum;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		long sum = 0;
+		for (Share share: shares.values()) {
+			sum += share.bytesWritten.sum();
+		}
+		return sum;
+	}
+
+	@Override
+	public long getCount() {
+		long sum = 0;
+		for (Share share: shares.values()) {
+			for (Stats stats: share.stats) {
+				sum += stats.count.sum();
+			}
+		}
+		return sum;
+	}
+
+	@Override
+	public long getErrors() {
+		long sum = 0;
+		for (Share share: shares.values()) {
+			for (Stats stats: share.stats) {
+				sum += stats.errors.sum();
+			}
+		}
+		return sum;
+	}
+
+	@Override
+	public void reset() {
+		// the shares stay, resources keep references to them
+		for (Share share: shares.values()) {
+			share.reset();
+		}
+	}
+
+	public static class Share implements Recorder {
+
+		private final String name;
+		private final Stats[] stats = new Stats[OPERATIONS.length];
+		private final LongAdder bytesRead = new LongAdder();
+		private final LongAdder bytesWritten = new LongAdder();
+
+		private Share(String name) {
+			this.name = name;
+			for (int i = 0; i < stats.length; i++) {
+				stats[i] = new Stats();
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public void record(Operation op, long start, boolean failed, long bytes) {
+			stats[op.ordinal()].record(System.nanoTime() - start, failed);
+			if (op == Operation.READ) addBytesRead(bytes);
+			else if (op == Operation.WRITE) addBytesWritten(bytes);
+		}
+
+		public void addBytesRead(long bytes) {
+			if (bytes > 0) bytesRead.add(bytes);
+		}
+
+		public void addBytesWritten(long bytes) {
+			if (bytes > 0) bytesWritten.add(bytes);
+		}
+
+		public long getBytesRead() {
+			return bytesRead.sum();
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten.sum();
+		}
+
+		private void reset() {
+			for (Stats s: stats) {
+				s.reset();
+			}
+			bytesRead.reset();
+			bytesWritten.reset();
+		}
+	}
+
+	private static class MeteredInputStream extends FilterInputStream {
+
+		private final Recorder recorder;
+		// single bytes read since the last recorded read
+		private long pending;
+
+		private MeteredInputStream(InputStream in, Recorder recorder) {
+			super(in);
+			this.recorder = recorder;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1) pending++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			boolean failed = true;
+			int n = 0;
+			try {
+				n = in.read(b, off, len);
+				failed = false;
+				return n;
+			}
+			finally {
+				recorder.record(Operation.READ, start, failed, Math.max(n, 0) + pending);
+				pending = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				super.close();
+				failed = false;
+			}
+			finally {
+				if (pending > 0) recorder.record(Operation.READ, start, failed, pending);
+				pending = 0;
+			}
+		}
+	}
+
+	private static class MeteredOutputStream extends FilterOutputStream {
+
+		private final Recorder recorder;
+		// single bytes written since the last recorded write
+		private long pending;
+
+		private MeteredOutputStream(OutputStream out, Recorder recorder) {
+			super(out);
+			this.recorder = recorder;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			pending++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				out.write(b, off, len);
+				failed = false;
+			}
+			finally {
+				recorder.record(Operation.WRITE, start, failed, failed ? pending : len + pending);
+				pending = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				super.close();
+				failed = false;
+			}
+			finally {
+				if (pending > 0) recorder.record(Operation.WRITE, start, failed, pending);
+				pending = 0;
+			}
+		}
+	}
+
+	private static class Stats {
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+		private Stats() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		private void record(long duration, boolean failed) {
+			count.increment();
+			if (failed) errors.increment();
+			nanos.add(duration);
+			max.accumulate(duration);
+			long micros = duration / 1000;
+			buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+		}
+
+		private void reset() {
+			count.reset();
+			errors.reset();
+			nanos.reset();
+			max.reset();
+			for (LongAdder bucket: buckets) {
+				bucket.reset();
+			}
+		}
+
+		private OperationSnapshot snapshot(String share, Operation op) {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets[i].sum();
+				total += counts[i];
+			}
+			long c = count.sum();
+			return new OperationSnapshot(share, op.name(), c, errors.sum(), c == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(nanos.sum()) / c, TimeUnit.NANOSECONDS.toMicros(max.get()),
+					_percentile(counts, total, 0.5), _percentile(counts, total, 0.99), _percentile(counts, total, 0.999));
+		}
+
+		/**
+		 * upper bound of the bucket the percentile falls into, in microseconds
+		 */
+		private static long _percentile(long[] counts, long total, double p) {
+			if (total == 0) return 0;
+			long rank = (long) Math.ceil(total * p);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) return 1L << i;
+			}
+			return 1L << (counts.length - 1);
+		}
+	}
+
+	/**
+	 * numbers of one operation on one share at the time of the snapshot, times in microseconds
+	 */
+	public static class OperationSnapshot {
+
+		private final String share;
+		private final String operation;
+		private final long count;
+		private final long errors;
+		private final long meanMicros;
+		private final long maxMicros;
+		private final long p50Micros;
+		private final long p99Micros;
+		private final long p999Micros;
+
+		public OperationSnapshot(String share, String operation, long count, long errors, long meanMicros, long maxMicros, long p50Micros, long p99Micros, long p999Micros) {
+			this.share = share;
+			this.operation = operation;
+			this.count = count;
+			this.errors = errors;
+			this.meanMicros = meanMicros;
+			this.maxMicros = maxMicros;
+			this.p50Micros = p50Micros;
+			this.p99Micros = p99Micros;
+			this.p999Micros = p999Micros;
+		}
+
+		public String getShare() {
+			return share;
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		public long getMeanMicros() {
+			return meanMicros;
+		}
+
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+
+		public long getP50Micros() {
+			return p50Micros;
+		}
+
+		public long getP99Micros() {
+			return p99Micros;
+		}
+
+		public long getP999Micros() {
+			return p999Micros;
+		}
+
+		@Override
+		public String toString() {
+			return share + " " + operation + " count:" + count + " errors:" + errors + " mean:" + meanMicros + "us p99:" + p99Micros + "us";
+		}
+	}
+}
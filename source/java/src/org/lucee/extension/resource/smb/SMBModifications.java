@@ -0,0 +1,121 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which keys were modified through the provider, so a metadata snapshot taken at a given
+ * version only becomes outdated by a change of its own key, of a key above it or of a key directly
+ * below it, the same scope the stat cache is invalidated with. Modifications older than the window
+ * can't outdate any snapshot and are forgotten.
+ */
+public class SMBModifications {
+
+	// keys modified together with everything below them
+	private final Map<String, Entry> trees = new ConcurrentHashMap<String, Entry>();
+	// directories whose listing and last modified date changed with a key below them
+	private final Map<String, Entry> parents = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong version = new AtomicLong();
+	private final int maxSize;
+	private volatile long window;
+	// every snapshot taken before this version is outdated, raised when modifications are dropped early
+	private volatile long floor;
+
+	public SMBModifications(long window, int maxSize) {
+		this.window = window;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * how long a snapshot is used at most, in milliseconds
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * the current version, to be taken before the metadata of a snapshot is loaded
+	 */
+	public long version() {
+		return version.get();
+	}
+
+	/**
+	 * records a modification of the given key and of its parent
+	 */
+	public void modified(String key, String parent) {
+		if (size() >= maxSize) _prune();
+		Entry entry = new Entry(version.incrementAndGet(), System.currentTimeMillis());
+		trees.put(key, entry);
+		if (parent != null) parents.put(parent, entry);
+	}
+
+	/**
+	 * true if the key, one of the keys above it or one directly below it was modified after the given
+	 * version
+	 */
+	public boolean isModifiedSince(String key, long since) {
+		// nothing modified at all, the common case
+		if (version.get() == since) return false;
+		if (floor > since) return true;
+		if (_isNewer(parents.get(key), since)) return true;
+		for (String k = key; k != null; k = _parent(k)) {
+			if (_isNewer(trees.get(k), since)) return true;
+		}
+		return false;
+	}
+
+	public int size() {
+		return trees.size() + parents.size();
+	}
+
+	private void _prune() {
+		long limit = System.currentTimeMillis() - window;
+		trees.values().removeIf(e -> e.time < limit);
+		parents.values().removeIf(e -> e.time < limit);
+		// still full, forget everything and outdate all snapshots taken so far
+		if (size() >= maxSize) {
+			floor = version.get() + 1;
+			trees.clear();
+			parents.clear();
+		}
+	}
+
+	private static boolean _isNewer(Entry entry, long since) {
+		return entry != null && entry.version > since;
+	}
+
+	private static String _parent(String key) {
+		int index = key.lastIndexOf('/');
+		return index == -1 ? null : key.substring(0, index);
+	}
+
+	private static final class Entry {
+		private final long version;
+		private final long time;
+
+		private Entry(long version, long time) {
+			this.version = version;
+			this.time = time;
+		}
+	}
+}
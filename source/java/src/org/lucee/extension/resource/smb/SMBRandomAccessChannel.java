@@ -0,0 +1,266 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.codelibs.jcifs.smb.SmbRandomAccess;
+
+/**
+ * SeekableByteChannel over a random access handle, reads and writes only transfer the bytes asked
+ * for. Read only channels can keep the last blocks read in memory, so reading a footer or an index
+ * in small steps does not cost one round trip per read.
+ */
+public class SMBRandomAccessChannel implements SeekableByteChannel {
+
+	private final SMBResource res;
+	private final SmbRandomAccess handle;
+	private final boolean writable;
+	private final int blockSize;
+	private final SMBMetrics.Recorder recorder;
+	private final Map<Long, byte[]> blocks;
+	// the thread holding the lock of a writable channel, it may be closed by another one
+	private final Thread owner = Thread.currentThread();
+	private long position;
+	private long size;
+	private boolean open = true;
+	private long blockHits;
+	private long blockMisses;
+
+	/**
+	 * @param res resource the handle belongs to, a writable channel unlocks it when closed
+	 * @param blockSize bytes per cached block
+	 * @param cacheBlocks max number of blocks kept in memory, 0 disables the cache, ignored for
+	 *            writable channels
+	 * @param recorder records reads and writes, can be null
+	 */
+	public SMBRandomAccessChannel(SMBResource res, SmbRandomAccess handle, boolean writable, int blockSize, final int cacheBlocks, SMBMetrics.Recorder recorder)
+			throws IOException {
+		this.res = res;
+		this.recorder = recorder;
+		this.handle = handle;
+		this.writable = writable;
+		this.blockSize = blockSize;
+		this.size = handle.length();
+		if (!writable && blockSize > 0 && cacheBlocks > 0) {
+			this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+					return size() > cacheBlocks;
+				}
+			};
+		}
+		else this.blocks = null;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		_checkOpen();
+		if (!dst.hasRemaining()) return 0;
+		if (position >= size) return -1;
+
+		if (blocks == null) {
+			int len = (int) Math.min(dst.remaining(), size - position);
+			byte[] buffer = dst.hasArray() ? dst.array() : new byte[len];
+			int off = dst.hasArray() ? dst.arrayOffset() + dst.position() : 0;
+			handle.seek(position);
+			int n = _read(buffer, off, len);
+			if (n <= 0) return -1;
+			if (dst.hasArray()) dst.position(dst.position() + n);
+			else dst.put(buffer, 0, n);
+			position += n;
+			return n;
+		}
+
+		int total = 0;
+		while (dst.hasRemaining() && position < size) {
+			long index = position / blockSize;
+			byte[] block = _block(index);
+			int off = (int) (position - index * blockSize);
+			if (off >= block.length) break; // the file is shorter than when the channel was opened
+			int n = Math.min(dst.remaining(), block.length - off);
+			dst.put(block, off, n);
+			position += n;
+			total += n;
+		}
+		return total == 0 ? -1 : total;
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException {
+		_checkOpen();
+		if (!writable) throw new NonWritableChannelException();
+		int len = src.remaining();
+		if (len == 0) return 0;
+		byte[] buffer;
+		int off;
+		if (src.hasArray()) {
+			buffer = src.array();
+			off = src.arrayOffset() + src.position();
+		}
+		else {
+			buffer = new byte[len];
+			src.duplicate().get(buffer);
+			off = 0;
+		}
+		handle.seek(position);
+		_write(buffer, off, len);
+		src.position(src.position() + len);
+		position += len;
+		if (position > size) size = position;
+		return len;
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		_checkOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		_checkOpen();
+		if (newPosition < 0) throw new IllegalArgumentException("position must not be negative");
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		_checkOpen();
+		return size;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel truncate(long newSize) throws IOException {
+		_checkOpen();
+		if (newSize < 0) throw new IllegalArgumentException("size must not be negative");
+		if (!writable) throw new NonWritableChannelException();
+		if (newSize < size) {
+			handle.setLength(newSize);
+			size = newSize;
+		}
+		if (position > newSize) position = newSize;
+		return this;
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!open) return;
+		open = false;
+		if (blocks != null) blocks.clear();
+		try {
+			handle.close();
+		}
+		finally {
+			if (writable) {
+				res.invalidate();
+				((SMBResourceProvider) res.getResourceProvider()).unlock(res, owner);
+			}
+		}
+	}
+
+	/**
+	 * number of reads served from the block cache
+	 */
+	public synchronized long getBlockHits() {
+		return blockHits;
+	}
+
+	/**
+	 * number of blocks read from the server
+	 */
+	public synchronized long getBlockMisses() {
+		return blockMisses;
+	}
+
+	private byte[] _block(long index) throws IOException {
+		byte[] block = blocks.get(index);
+		if (block != null) {
+			blockHits++;
+			return block;
+		}
+		blockMisses++;
+		long start = index * blockSize;
+		byte[] data = new byte[(int) Math.min(blockSize, size - start)];
+		handle.seek(start);
+		int len = 0;
+		while (len < data.length) {
+			int n = _read(data, len, data.length - len);
+			if (n <= 0) break;
+			len += n;
+		}
+		if (len < data.length) {
+			byte[] tmp = new byte[len];
+			System.arraycopy(data, 0, tmp, 0, len);
+			data = tmp;
+		}
+		blocks.put(index, data);
+		return data;
+	}
+
+	private int _read(byte[] b, int off, int len) throws IOException {
+		if (recorder == null) return handle.read(b, off, len);
+		long start = System.nanoTime();
+		boolean failed = true;
+		int n = 0;
+		try {
+			n = handle.read(b, off, len);
+			failed = false;
+			return n;
+		}
+		finally {
+			recorder.record(SMBMetrics.Operation.READ, start, failed, n);
+		}
+	}
+
+	private void _write(byte[] b, int off, int len) throws IOException {
+		if (recorder == null) {
+			handle.write(b, off, len);
+			return;
+		}
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			handle.write(b, off, len);
+			failed = false;
+		}
+		finally {
+			recorder.record(SMBMetrics.Operation.WRITE, start, failed, failed ? 0 : len);
+		}
+	}
+
+	private void _checkOpen() throws ClosedChannelException {
+		if (!open) throw new ClosedChannelException();
+	}
+}
@@ -0,0 +1,227 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.codelibs.jcifs.smb.CIFSException;
+import org.codelibs.jcifs.smb.SmbConstants;
+import org.codelibs.jcifs.smb.SmbRandomAccess;
+import org.codelibs.jcifs.smb.SmbResource;
+
+/**
+ * downloads a remote file into a local file by splitting it into byte ranges that are fetched
+ * concurrently, every range with its own handle. Ranges that failed are remembered, so the download
+ * can be resumed without fetching the ranges that already arrived.
+ */
+public class SMBRangeDownload {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private final SmbResource file;
+	private final File target;
+	private final long rangeSize;
+	private long length;
+	private long lastModified;
+	private List<Range> ranges;
+
+	public SMBRangeDownload(SmbResource file, File target, long rangeSize) throws IOException {
+		if (rangeSize <= 0) throw new IllegalArgumentException("range size must be greater than 0");
+		this.file = file;
+		this.target = target;
+		this.rangeSize = rangeSize;
+		_init();
+	}
+
+	/**
+	 * fetches all ranges that are not downloaded yet, one attempt per range
+	 * 
+	 * @return the errors of the ranges that failed, empty if the download is complete
+	 */
+	public List<IOException> run(SMBResourceProvider provider) throws IOException {
+		// a file that changed since the last attempt can't be resumed, start over
+		if (!_isUnchanged()) _init();
+		// the target is created and truncated even if there is nothing to fetch, an empty file has no
+		// ranges
+		try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			if (channel.size() > length) channel.truncate(length);
+			List<Range> pending = getPendingRanges();
+			if (pending.isEmpty()) return Collections.emptyList();
+			return provider.forEachParallel(pending, range -> _fetch(range, channel));
+		}
+	}
+
+	/**
+	 * runs the download until it is complete or every pending range failed <code>retries</code> more
+	 * times, then verifies the result
+	 */
+	public void download(SMBResourceProvider provider, int retries) throws IOException {
+		List<IOException> errors = run(provider);
+		for (int i = 0; i < retries && !errors.isEmpty(); i++) {
+			errors = run(provider);
+		}
+		if (!errors.isEmpty()) {
+			IOException ioe = new IOException(
+					"failed to download " + getPendingRanges().size() + " of " + ranges.size() + " ranges of [" + file.getLocator().getURL() + "] to [" + target + "]");
+			for (IOException e: errors) {
+				ioe.addSuppressed(e);
+			}
+			throw ioe;
+		}
+		verify();
+	}
+
+	/**
+	 * checks that all ranges arrived, that the local file has the size of the remote file and that the
+	 * remote file was not modified while it was downloaded
+	 */
+	public void verify() throws IOException {
+		if (!isComplete()) throw new IOException("download of [" + file.getLocator().getURL() + "] is incomplete, " + getPendingRanges().size() + " ranges are missing");
+		if (!_isUnchanged()) throw new IOException("[" + file.getLocator().getURL() + "] was modified during the download");
+		if (target.length() != length) throw new IOException("size of [" + target + "] is " + target.length() + " but [" + file.getLocator().getURL() + "] has " + length + " bytes");
+	}
+
+	public boolean isComplete() {
+		return getPendingRanges().isEmpty();
+	}
+
+	public List<Range> getRanges() {
+		return Collections.unmodifiableList(ranges);
+	}
+
+	public List<Range> getPendingRanges() {
+		List<Range> pending = new ArrayList<Range>();
+		for (Range range: ranges) {
+			if (!range.isDone()) pending.add(range);
+		}
+		return pending;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	private void _init() throws IOException {
+		try (SmbResource current = _current()) {
+			length = current.length();
+			lastModified = current.lastModified();
+		}
+		catch (CIFSException e) {
+			throw new IOException(e); // for cfcatch type="java.io.IOException"
+		}
+		List<Range> list = new ArrayList<Range>();
+		for (long start = 0; start < length; start += rangeSize) {
+			list.add(new Range(start, Math.min(rangeSize, length - start)));
+		}
+		ranges = list;
+	}
+
+	private boolean _isUnchanged() throws IOException {
+		try (SmbResource current = _current()) {
+			return current.length() == length && current.lastModified() == lastModified;
+		}
+		catch (CIFSException e) {
+			throw new IOException(e); // for cfcatch type="java.io.IOException"
+		}
+	}
+
+	/**
+	 * new handle for the remote file, so the size and date are not served from the attribute cache of
+	 * the client
+	 */
+	private SmbResource _current() throws CIFSException {
+		return file.getContext().get(file.getLocator().getURL().toString());
+	}
+
+	private void _fetch(Range range, FileChannel channel) throws IOException {
+		range.attempts++;
+		byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, range.length)];
+		try (SmbRandomAccess handle = file.openRandomAccess("r", SmbConstants.DEFAULT_SHARING)) {
+			handle.seek(range.start);
+			long pos = range.start;
+			long end = range.start + range.length;
+			while (pos < end) {
+				int n = handle.read(buffer, 0, (int) Math.min(buffer.length, end - pos));
+				if (n == -1) throw new IOException("unexpected end of [" + file.getLocator().getURL() + "] at " + pos + ", expected " + length + " bytes");
+				ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+				while (bb.hasRemaining()) {
+					pos += channel.write(bb, pos);
+				}
+			}
+			range.done = true;
+			range.error = null;
+		}
+		catch (IOException e) {
+			range.error = e;
+			throw e;
+		}
+	}
+
+	/**
+	 * byte range of the remote file
+	 */
+	public static class Range {
+
+		private final long start;
+		private final long length;
+		private volatile boolean done;
+		private volatile int attempts;
+		private volatile IOException error;
+
+		private Range(long start, long length) {
+			this.start = start;
+			this.length = length;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * error of the last attempt, null if the range was downloaded or not tried yet
+		 */
+		public IOException getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return start + "-" + (start + length - 1);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.codelibs.jcifs.smb.SmbConstants;
+import org.codelibs.jcifs.smb.SmbRandomAccess;
+import org.codelibs.jcifs.smb.SmbResource;
+
+/**
+ * InputStream that keeps several reads in flight. The file is split into chunks, up to
+ * <code>window</code> of them are read concurrently by worker threads, each with its own handle,
+ * and handed to the caller in order. jcifs multiplexes the requests over the session within the
+ * credits granted by the server.
+ */
+public class SMBReadAheadInputStream extends InputStream {
+
+	private final SmbResource file;
+	private final long length;
+	private final int chunkSize;
+	private final int window;
+	private final ExecutorService executor;
+	private final SMBMetrics.Recorder recorder;
+	private final Queue<SmbRandomAccess> handles = new ConcurrentLinkedQueue<SmbRandomAccess>();
+	private final List<SmbRandomAccess> opened = Collections.synchronizedList(new ArrayList<SmbRandomAccess>());
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private long nextOffset;
+	private byte[] current;
+	private int pos;
+	private volatile boolean closed;
+	// reads running on worker threads, guarded by itself
+	private final int[] running = new int[1];
+
+	/**
+	 * @param recorder records the reads, can be null
+	 */
+	public SMBReadAheadInputStream(SmbResource file, long length, int chunkSize, int window, ExecutorService executor, SMBMetrics.Recorder recorder) {
+		this.file = file;
+		this.length = length;
+		this.chunkSize = chunkSize;
+		this.window = window;
+		this.executor = executor;
+		this.recorder = recorder;
+		_schedule();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!_ensureData()) return -1;
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!_ensureData()) return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current == null ? 0 : current.length - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		synchronized (running) {
+			closed = true;
+		}
+		// reads not started yet are dropped, the ones that started see closed before they open a handle
+		for (Future<byte[]> future: pending) {
+			future.cancel(false);
+		}
+		pending.clear();
+		// wait for the reads already running, they still use the handles
+		boolean interrupted = false;
+		synchronized (running) {
+			while (running[0] > 0) {
+				try {
+					running.wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		current = null;
+		IOException ioe = null;
+		synchronized (opened) {
+			for (SmbRandomAccess handle: opened) {
+				try {
+					handle.close();
+				}
+				catch (IOException e) {
+					if (ioe == null) ioe = e;
+				}
+			}
+			opened.clear();
+		}
+		if (ioe != null) throw ioe;
+	}
+
+	private boolean _ensureData() throws IOException {
+		if (closed) throw new IOException("stream is closed");
+		while (current == null || pos >= current.length) {
+			Future<byte[]> future = pending.poll();
+			if (future == null) return false;
+			try {
+				current = future.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while reading [" + file.getLocator().getURL() + "]");
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException(e.getCause());
+			}
+			pos = 0;
+			// the file got shorter since we started, nothing more to read after this chunk
+			if (current.length < chunkSize) nextOffset = length;
+			_schedule();
+		}
+		return true;
+	}
+
+	private void _schedule() {
+		while (pending.size() < window && nextOffset < length) {
+			final long offset = nextOffset;
+			final int len = (int) Math.min(chunkSize, length - offset);
+			pending.add(executor.submit(() -> _readChunk(offset, len)));
+			nextOffset += len;
+		}
+	}
+
+	private byte[] _readChunk(long offset, int len) throws IOException {
+		synchronized (running) {
+			if (closed) throw new IOException("stream is closed");
+			running[0]++;
+		}
+		try {
+			return _readChunk(offset, len, handles.poll());
+		}
+		finally {
+			synchronized (running) {
+				running[0]--;
+				running.notifyAll();
+			}
+		}
+	}
+
+	private byte[] _readChunk(long offset, int len, SmbRandomAccess handle) throws IOException {
+		if (handle == null) {
+			handle = file.openRandomAccess("r", SmbConstants.DEFAULT_SHARING);
+			opened.add(handle);
+		}
+		long start = System.nanoTime();
+		boolean failed = true;
+		int n = 0;
+		try {
+			byte[] buffer = new byte[len];
+			handle.seek(offset);
+			while (n < len) {
+				int read = handle.read(buffer, n, len - n);
+				if (read <= 0) break;
+				n += read;
+			}
+			failed = false;
+			return n == len ? buffer : Arrays.copyOf(buffer, n);
+		}
+		finally {
+			handles.offer(handle);
+			if (recorder != null) recorder.record(SMBMetrics.Operation.READ, start, failed, n);
+		}
+	}
+}
@@ -18,15 +18,24 @@
  **/
 package org.lucee.extension.resource.smb;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import lucee.loader.engine.CFMLEngine;
 import lucee.loader.engine.CFMLEngineFactory;
@@ -36,8 +45,13 @@ import org.codelibs.jcifs.smb.CIFSContext;
 import org.codelibs.jcifs.smb.CIFSException;
 import org.codelibs.jcifs.smb.CloseableIterator;
 import org.codelibs.jcifs.smb.SmbConstants;
+import org.codelibs.jcifs.smb.SmbRandomAccess;
 import org.codelibs.jcifs.smb.SmbResource;
+import org.codelibs.jcifs.smb.SmbResourceLocator;
+import org.codelibs.jcifs.smb.SmbWatchHandle;
+import org.codelibs.jcifs.smb.impl.NtStatus;
 import org.codelibs.jcifs.smb.impl.NtlmPasswordAuthenticator;
+import org.codelibs.jcifs.smb.impl.SmbException;
 import org.codelibs.jcifs.smb.impl.SmbFile;
 import lucee.commons.io.res.Resource;
 import lucee.commons.io.res.ResourceProvider;
@@ -54,6 +68,12 @@ public class SMBResource extends ResourceSupport implements Resource {
 	private NtlmPasswordAuthenticator auth;
 	private SmbResource _smbFile;
 	private SmbResource _smbDir;
+	private transient volatile Snapshot snapshot;
+	private transient SMBMetrics.Share share;
+	private transient SMBMetrics.Recorder slowRecorder;
+	private transient String logPath;
+	private transient String credentialsKey;
+	private transient String cacheKey;
 
 	private SMBResource(CFMLEngine engine, SMBResourceProvider provider) {
 		super(engine);
@@ -80,9 +100,24 @@ public class SMBResource extends ResourceSupport implements Resource {
 		_init(engine.getResourceUtil().merge(_stripAuth(parent), child), auth);
 	}
 
+	/**
+	 * creates a resource for a handle returned by a directory enumeration, the handle already carries
+	 * the attributes the server sent with the listing, so we keep it instead of resolving the path again
+	 */
+	private SMBResource(CFMLEngine engine, SMBResourceProvider provider, SmbResource file, NtlmPasswordAuthenticator auth) {
+		this(engine, provider, file.getLocator().getURL().toString(), auth);
+		_smbFile = file;
+		if (file.getName().endsWith("/")) _smbDir = file;
+	}
+
 	private void _init(String path, NtlmPasswordAuthenticator auth) {
 		// String[] pathName=CFMLEngineFactory.getInstance().getResourceUtil().translatePathName(path);
-		this.path = _stripScheme(path);
+		path = _stripScheme(path);
+		// the credentials are only kept in auth, getRealResource and listings pass paths with the
+		// encrypted user info
+		String stripped = SMBResourceProvider.stripUserInfo(path);
+		if (auth == null && !stripped.equals(path)) auth = _extractAuth(path);
+		this.path = stripped;
 		this.auth = auth;
 
 	}
@@ -164,25 +199,150 @@ public class SMBResource extends ResourceSupport implements Resource {
 		return _file(false);
 	}
 
+	/**
+	 * handle for a path with the credentials of this resource, the key of the credentials is only
+	 * calculated once
+	 */
+	private SmbResource _getFile(String path) {
+		String key = credentialsKey;
+		if (key == null) credentialsKey = key = auth == null ? "" : SMBResourceProvider.toCredentialsKey(auth);
+		return provider.getFile(path, auth, key);
+	}
+
 	private SmbResource _file(boolean expectDirectory) {
 		String _path = _calculatePath(getInnerPath());
 		SmbResource result;
 		if (expectDirectory) {
 			if (!_path.endsWith("/")) _path += "/";
 			if (_smbDir == null) {
-				_smbDir = provider.getFile(_path, auth);
+				_smbDir = _getFile(_path);
 			}
 			result = _smbDir;
 		}
 		else {
 			if (_smbFile == null) {
-				_smbFile = provider.getFile(_path, auth);
+				_smbFile = _getFile(_path);
 			}
 			result = _smbFile;
 		}
 		return result;
 	}
 
+	/**
+	 * returns the metadata of this resource, from the provider stat or not found cache if enabled
+	 */
+	private SMBFileAttributes _attributes() {
+		// all getters of one call like getFileInfo() see the same snapshot
+		Snapshot snap = snapshot;
+		long now = System.currentTimeMillis();
+		SMBModifications modifications = provider.getModifications();
+		long version = modifications.version();
+		if (snap != null && now - snap.loaded < provider.getAttributeFreshness()) {
+			if (!modifications.isModifiedSince(snap.key, snap.version)) return snap.attributes;
+			// changed through another resource, jcifs still holds the old attributes in our handles
+			_smbFile = null;
+			_smbDir = null;
+		}
+
+		SmbResource file = _file();
+		if (file == null) return SMBFileAttributes.NOT_EXISTING;
+		String key = _cacheKey();
+		SMBCache<SMBFileAttributes> cache = provider.getStatCache();
+		SMBFileAttributes atts = cache.get(key);
+		if (atts == null) {
+			SMBCache<Boolean> notFound = provider.getNotFoundCache();
+			if (notFound.get(key) != null) atts = SMBFileAttributes.NOT_EXISTING;
+			else {
+				long start = System.nanoTime();
+				boolean failed = true;
+				try {
+					atts = SMBFileAttributes.load(file);
+					failed = false;
+				}
+				catch (CIFSException e) {
+					return SMBFileAttributes.NOT_EXISTING; // not cached, the next call should ask the server again
+				}
+				finally {
+					_record(SMBMetrics.Operation.STAT, start, failed);
+				}
+				if (atts.exists()) cache.put(key, atts);
+				else notFound.put(key, Boolean.TRUE);
+			}
+		}
+		snapshot = new Snapshot(atts, key, version, now);
+		return atts;
+	}
+
+	/**
+	 * the metadata as the server has it right now, without the snapshot, the caches of the provider and
+	 * the attributes jcifs keeps per handle, a new handle has none. Not existing if the server can't be
+	 * asked.
+	 */
+	private SMBFileAttributes _freshAttributes() {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try (SmbResource file = _getFile(_calculatePath(getInnerPath()))) {
+			if (file == null) return SMBFileAttributes.NOT_EXISTING;
+			SMBFileAttributes atts = SMBFileAttributes.load(file);
+			failed = false;
+			return atts;
+		}
+		catch (CIFSException e) {
+			return SMBFileAttributes.NOT_EXISTING;
+		}
+		finally {
+			_record(SMBMetrics.Operation.STAT, start, failed);
+		}
+	}
+
+	/**
+	 * immutable snapshot of the metadata of this resource, reused for the freshness window set with the
+	 * provider argument "attribute-freshness" unless something was changed through the provider
+	 */
+	public SMBFileAttributes getFileAttributes() {
+		return _attributes();
+	}
+
+	/**
+	 * drops all cached metadata of this resource and reads it again from the server
+	 */
+	public SMBFileAttributes refresh() {
+		invalidate();
+		return _attributes();
+	}
+
+	/**
+	 * key of this file for the caches of the provider, see
+	 * {@link SMBResourceProvider#toCacheKey(SmbResourceLocator, NtlmPasswordAuthenticator)}
+	 */
+	private String _cacheKey() {
+		String key = cacheKey;
+		if (key == null) {
+			SmbResource file = _file();
+			cacheKey = key = file == null ? SMBResourceProvider.toCacheKey(getInnerPath(), auth) : SMBResourceProvider.toCacheKey(file.getLocator(), auth);
+		}
+		return key;
+	}
+
+	/**
+	 * key of the lock of this file, the same for all users
+	 */
+	String lockKey() {
+		SmbResource file = _file();
+		return file == null ? SMBResourceProvider.toCacheKey(getInnerPath(), null) : SMBResourceProvider.toCacheKey(file.getLocator(), null);
+	}
+
+	/**
+	 * drops the cached metadata of this resource, has to be called by every operation modifying it
+	 */
+	public void invalidate() {
+		snapshot = null;
+		// new handles, jcifs keeps the attributes of a handle for "attr-expiration" milliseconds
+		_smbFile = null;
+		_smbDir = null;
+		provider.invalidate(_cacheKey());
+	}
+
 	private String _calculatePath(String path) {
 		return _calculatePath(path, null);
 	}
@@ -231,25 +391,17 @@ public class SMBResource extends ResourceSupport implements Resource {
 		try {
 			if (file.getType() == SmbConstants.TYPE_SHARE) {
 				// canWrite() doesn't work on shares. always returns false even if you can truly write, test this by
-				// opening a file on the share
-
-				SmbResource testFile = _getTempFile(file, auth);
-				if (testFile == null) return false;
-				if (testFile.canWrite()) return true;
-
-				OutputStream os = null;
-				try {
-					os = testFile.openOutputStream();
+				// opening a file on the share, the result is cached per share and user
+				String key = _cacheKey();
+				SMBCache<Boolean> cache = provider.getWritableCache();
+				Boolean writable = cache.get(key);
+				if (writable == null) {
+					writable = _probeWritable(file);
+					// an inconclusive probe (timeout, lost session, ...) is not cached
+					if (writable == null) return false;
+					cache.put(key, writable);
 				}
-				catch (IOException e) {
-					return false;
-				}
-				finally {
-					if (os != null) engine.getIOUtil().closeSilent(os);
-					testFile.delete();
-				}
-				return true;
-
+				return writable.booleanValue();
 			}
 			return file.canWrite();
 		}
@@ -258,21 +410,93 @@ public class SMBResource extends ResourceSupport implements Resource {
 		}
 	}
 
+	/**
+	 * @return null if the probe failed for another reason than missing permissions
+	 */
+	private Boolean _probeWritable(SmbResource share) throws CIFSException {
+		SmbResource testFile = _getTempFile(share, auth);
+		if (testFile == null) return null;
+		if (testFile.canWrite()) return Boolean.TRUE;
+
+		OutputStream os;
+		try {
+			os = testFile.openOutputStream();
+		}
+		catch (SmbException e) {
+			return e.getNtStatus() == NtStatus.NT_STATUS_ACCESS_DENIED ? Boolean.FALSE : null;
+		}
+		catch (CIFSException e) {
+			return null;
+		}
+		engine.getIOUtil().closeSilent(os);
+		try {
+			testFile.delete();
+		}
+		catch (CIFSException e) {
+			// the share is writable, a left over test file does not change that
+		}
+		return Boolean.TRUE;
+	}
+
 	private SmbResource _getTempFile(SmbResource directory, NtlmPasswordAuthenticator auth) throws CIFSException {
 		if (!directory.isDirectory()) return null;
 		Random r = new Random();
 
-		SmbResource result = provider.getFile(directory.getLocator().getURL().toString() + "/write-test-file.unknown." + r.nextInt(), auth);
-		if (result.exists()) return _getTempFile(directory, auth); // try again
-		return result;
+		for (int i = 0; i < 10; i++) {
+			SmbResource result = _getFile(directory.getLocator().getURL().toString() + "/write-test-file.unknown." + r.nextInt());
+			if (!result.exists()) return result;
+		}
+		return null; // no free name found, give up
 	}
 
 	@Override
 	public void remove(boolean alsoRemoveChildren) throws IOException {
-		if (alsoRemoveChildren) engine.getResourceUtil().removeChildren(this);
+		if (alsoRemoveChildren && isDirectory()) _removeChildren();
 		_delete();
 	}
 
+	/**
+	 * deletes everything below this directory, the tree is enumerated once, then the files are deleted
+	 * in parallel and finally the directories level by level from the bottom up
+	 */
+	private void _removeChildren() throws IOException {
+		List<SmbResource> files = new ArrayList<SmbResource>();
+		List<List<SmbResource>> levels = new ArrayList<List<SmbResource>>();
+		try {
+			_collect(_file(true), 0, files, levels);
+
+			List<IOException> errors = new ArrayList<IOException>();
+			errors.addAll(provider.forEachParallel(files, file -> file.delete()));
+			for (int i = levels.size() - 1; i >= 0; i--) {
+				errors.addAll(provider.forEachParallel(levels.get(i), dir -> dir.delete()));
+			}
+			if (!errors.isEmpty()) {
+				IOException ioe = new IOException("Can't delete [" + errors.size() + "] entries below [" + getPath() + "]: " + errors.get(0).getMessage());
+				for (IOException e: errors) {
+					ioe.addSuppressed(e);
+				}
+				throw ioe;
+			}
+		}
+		finally {
+			invalidate();
+		}
+	}
+
+	private static void _collect(SmbResource dir, int level, List<SmbResource> files, List<List<SmbResource>> levels) throws CIFSException {
+		try (CloseableIterator<SmbResource> iter = dir.children()) {
+			while (iter.hasNext()) {
+				SmbResource child = iter.next();
+				if (child.isDirectory()) {
+					if (levels.size() <= level) levels.add(new ArrayList<SmbResource>());
+					levels.get(level).add(child);
+					_collect(child, level + 1, files, levels);
+				}
+				else files.add(child);
+			}
+		}
+	}
+
 	private void _delete() throws IOException {
 		provider.lock(this);
 		try {
@@ -281,25 +505,28 @@ public class SMBResource extends ResourceSupport implements Resource {
 			if (file.isDirectory()) {
 				file = _file(true);
 			}
-			file.delete();
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				file.delete();
+				failed = false;
+			}
+			finally {
+				_record(SMBMetrics.Operation.DELETE, start, failed);
+			}
 		}
 		catch (CIFSException e) {
 			throw new IOException(e);// for cfcatch type="java.io.IOException"
 		}
 		finally {
+			invalidate();
 			provider.unlock(this);
 		}
 	}
 
 	@Override
 	public boolean exists() {
-		SmbResource file = _file();
-		try {
-			return file != null && file.exists();
-		}
-		catch (CIFSException e) {
-			return false;
-		}
+		return _attributes().exists();
 	}
 
 	@Override
@@ -352,99 +579,89 @@ public class SMBResource extends ResourceSupport implements Resource {
 
 	@Override
 	public boolean isDirectory() {
-		SmbResource file = _file();
-		try {
-			return file != null && _file().isDirectory();
-		}
-		catch (CIFSException e) {
-			return false;
-		}
+		return _attributes().isDirectory();
 	}
 
 	@Override
 	public boolean isFile() {
-		SmbResource file = _file();
-		try {
-			return file != null && file.isFile();
-		}
-		catch (CIFSException e) {
-			return false;
-		}
+		return _attributes().isFile();
 	}
 
 	@Override
 	public boolean isHidden() {
-		return _isFlagSet(_file(), SmbConstants.ATTR_HIDDEN);
+		return _attributes().isFlagSet(SmbConstants.ATTR_HIDDEN);
 	}
 
 	@Override
 	public boolean isArchive() {
-		return _isFlagSet(_file(), SmbConstants.ATTR_ARCHIVE);
+		return _attributes().isFlagSet(SmbConstants.ATTR_ARCHIVE);
 	}
 
 	@Override
 	public boolean isSystem() {
-		return _isFlagSet(_file(), SmbConstants.ATTR_SYSTEM);
-	}
-
-	private boolean _isFlagSet(SmbResource file, int flag) {
-		if (file == null) return false;
-		try {
-			return (file.getAttributes() & flag) == flag;
-		}
-		catch (CIFSException e) {
-			return false;
-		}
+		return _attributes().isFlagSet(SmbConstants.ATTR_SYSTEM);
 	}
 
 	@Override
 	public long lastModified() {
-		SmbResource file = _file();
-		if (file == null) return 0;
-		try {
-			return file.lastModified();
-		}
-		catch (CIFSException e) {
-			return 0;
-		}
-
+		return _attributes().lastModified();
 	}
 
 	@Override
 	public long length() {
-		SmbResource file = _file();
-		if (file == null) return 0;
-		try {
-			return file.length();
-		}
-		catch (CIFSException e) {
-			return 0;
-		}
+		return _attributes().length();
 	}
 
 	@Override
 	public Resource[] listResources(ResourceNameFilter nameFilter, ResourceFilter filter) {
 		if (isFile()) return null;
-		try {
-			SmbResource dir = _file(true);
-			List<Resource> list = new ArrayList<Resource>();
-			try (CloseableIterator<SmbResource> iter = dir.children()) {
-				while (iter.hasNext()) {
-					SmbResource file = iter.next();
-					SMBResource res = new SMBResource(engine, provider, file.getLocator().getURL().toString(), auth);
-
-					// apply filters
-					if (nameFilter != null && !nameFilter.accept(this, res.getName())) continue;
-					if (filter != null && !filter.accept(res)) continue;
-
-					list.add(res);
-				}
+		List<Resource> list = new ArrayList<Resource>();
+		try (SMBResourceIterator iter = iterateResources(nameFilter, filter)) {
+			while (iter.hasNext()) {
+				list.add(iter.next());
 			}
-			return list.toArray(new Resource[list.size()]);
 		}
-		catch (CIFSException e) {
+		catch (IOException e) {
 			return new Resource[0];
 		}
+		return list.toArray(new Resource[list.size()]);
+	}
+
+	/**
+	 * returns the children of this directory as they arrive from the server, the iterator has to be
+	 * closed if it is not read to the end. A {@link SMBWildcardFilter} with a single pattern is sent to
+	 * the server, so only matching entries are transferred.
+	 */
+	public SMBResourceIterator iterateResources(ResourceNameFilter nameFilter, ResourceFilter filter) throws IOException {
+		String wildcard = nameFilter instanceof SMBWildcardFilter ? ((SMBWildcardFilter) nameFilter).getWildcard() : null;
+		// the name filter is still applied to the result, the server also matches the 8.3 short names
+		CloseableIterator<SmbResource> children;
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			children = wildcard == null ? _file(true).children() : _file(true).children(wildcard);
+			failed = false;
+		}
+		finally {
+			_record(SMBMetrics.Operation.LIST, start, failed);
+		}
+		return new SMBResourceIterator(this, children, file -> new SMBResource(engine, provider, file, auth), nameFilter, filter);
+	}
+
+	/**
+	 * stream version of {@link #iterateResources(ResourceNameFilter, ResourceFilter)}, closing the
+	 * stream closes the enumeration on the server
+	 */
+	public Stream<Resource> streamResources(ResourceNameFilter nameFilter, ResourceFilter filter) throws IOException {
+		SMBResourceIterator iter = iterateResources(nameFilter, filter);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(() -> {
+			try {
+				iter.close();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
 	}
 
 	@Override
@@ -453,15 +670,18 @@ public class SMBResource extends ResourceSupport implements Resource {
 		if (file == null) return false;
 		try {
 			provider.lock(this);
-			file.setLastModified(time);
 		}
-		catch (CIFSException e) {
+		catch (IOException e) {
 			return false;
 		}
-		catch (IOException e) {
+		try {
+			file.setLastModified(time);
+		}
+		catch (CIFSException e) {
 			return false;
 		}
 		finally {
+			invalidate();
 			provider.unlock(this);
 		}
 		return true;
@@ -497,14 +717,15 @@ public class SMBResource extends ResourceSupport implements Resource {
 		SmbResource file = _file(true);
 		if (file == null) throw new IOException("SMBFile is inaccessible");
 		engine.getResourceUtil().checkCreateDirectoryOK(this, createParentWhenNotExists);
+		provider.lock(this);
 		try {
-			provider.lock(this);
 			file.mkdir();
 		}
 		catch (CIFSException e) {
 			throw new IOException(e); // for cfcatch type="java.io.IOException"
 		}
 		finally {
+			invalidate();
 			provider.unlock(this);
 		}
 	}
@@ -512,20 +733,108 @@ public class SMBResource extends ResourceSupport implements Resource {
 	@Override
 	public InputStream getInputStream() throws IOException {
 		try {
-			return _file().openInputStream();
+			SmbResource file = _file();
+			SMBContentCache contentCache = provider.getContentCache();
+			if (contentCache != null) {
+				InputStream is = contentCache.getInputStream(_cacheKey(), file, () -> {
+					Resource parent = getParentResource();
+					return parent instanceof SMBResource ? ((SMBResource) parent)._file(true) : null;
+				}, this::_freshAttributes);
+				if (is != null) return is;
+			}
+			SMBDiskCache diskCache = provider.getDiskCache();
+			if (diskCache != null) {
+				InputStream is = diskCache.getInputStream(_cacheKey(), file, this::_freshAttributes);
+				if (is != null) return is;
+			}
+			int window = provider.getReadAheadWindow();
+			if (window > 1) {
+				int chunkSize = provider.getReadAheadChunkSize();
+				if (chunkSize <= 0) chunkSize = _maxReadSize(file);
+				long length = file.length();
+				if (length > chunkSize) return new SMBReadAheadInputStream(file, length, chunkSize, window, provider.getExecutor(), recorder());
+			}
+			if (provider.isSmallFileFastPath()) return _openSmall(file);
+			return _openInputStream(file);
+		}
+		catch (CIFSException e) {
+			throw new IOException(e);// for cfcatch type="java.io.IOException"
+		}
+	}
+
+	/**
+	 * watches this directory for changes, the events are queued and read with
+	 * {@link SMBWatcher#poll(long)}, the watch has to be closed when no longer needed
+	 */
+	public SMBWatcher watch(boolean recursive) throws IOException {
+		return watch(recursive, null);
+	}
+
+	/**
+	 * watches this directory for changes and passes them to the listener
+	 */
+	public SMBWatcher watch(boolean recursive, SMBWatchListener listener) throws IOException {
+		if (!isDirectory()) throw new IOException("[" + getPath() + "] is not a directory");
+		try {
+			SmbWatchHandle handle = _file(true).watch(SMBWatcher.DEFAULT_FILTER, recursive);
+			return new SMBWatcher(provider, _cacheKey(), handle, name -> name.isEmpty() ? this : getRealResource(name), listener).start(provider.getWatchExecutor());
 		}
 		catch (CIFSException e) {
 			throw new IOException(e);// for cfcatch type="java.io.IOException"
 		}
 	}
 
+	/**
+	 * opens a channel for positioned reads and writes, a writable channel holds the lock of the
+	 * resource until it is closed, read only channels use the block cache configured with the provider
+	 * arguments "channel-block-size" and "channel-cache-blocks"
+	 */
+	public SeekableByteChannel getChannel(boolean write) throws IOException {
+		return getChannel(write, provider.getChannelBlockSize(), provider.getChannelCacheBlocks());
+	}
+
+	public SeekableByteChannel getChannel(boolean write, int blockSize, int cacheBlocks) throws IOException {
+		if (!write) {
+			try {
+				return new SMBRandomAccessChannel(this, _openRandomAccess("r"), false, blockSize, cacheBlocks, recorder());
+			}
+			catch (CIFSException e) {
+				throw new IOException(e);// for cfcatch type="java.io.IOException"
+			}
+		}
+		engine.getResourceUtil().checkGetOutputStreamOK(this);
+		provider.lock(this);
+		try {
+			SmbRandomAccess handle = _openRandomAccess("rw");
+			invalidate();
+			return new SMBRandomAccessChannel(this, handle, true, blockSize, 0, recorder());
+		}
+		catch (IOException e) {
+			provider.unlock(this);
+			throw new IOException(e);// just in case it is a CIFSException too... for cfcatch type="java.io.IOException"
+		}
+	}
+
 	@Override
 	public OutputStream getOutputStream(boolean append) throws IOException {
 		engine.getResourceUtil().checkGetOutputStreamOK(this);
+		provider.lock(this);
 		try {
-			provider.lock(this);
 			SmbResource file = _file();
-			OutputStream os = file.openOutputStream(append);
+			int window = provider.getWriteBehindWindow();
+			if (window > 1) {
+				int chunkSize = provider.getWriteBehindChunkSize();
+				if (chunkSize <= 0) chunkSize = _maxWriteSize(file);
+				OutputStream os = new SMBWriteBehindOutputStream(file, append, chunkSize, window, provider.getWriteSharing(), provider.getExecutor(), recorder());
+				invalidate();
+				// the write behind buffers itself
+				return new SMBResourceOutputStream(this, os);
+			}
+			// the file is opened right away, so errors like a locked file or a missing parent are reported here
+			OutputStream os = _openOutputStream(file, append);
+			invalidate();
+			// a buffer of the max write size sends a file that fits into one request with a single write
+			if (provider.isSmallFileFastPath()) return new BufferedOutputStream(new SMBResourceOutputStream(this, os), _maxWriteSize(file));
 			return engine.getIOUtil().toBufferedOutputStream(new SMBResourceOutputStream(this, os));
 		}
 		catch (IOException e) {
@@ -569,8 +878,8 @@ public class SMBResource extends ResourceSupport implements Resource {
 		int newAttribute = _lookupAttribute(attribute);
 		SmbResource file = _file();
 		if (file == null) throw new IOException("SMB File is not valid");
+		provider.lock(this);
 		try {
-			provider.lock(this);
 			int atts = file.getAttributes();
 			if (value) {
 				atts = atts | newAttribute;
@@ -584,10 +893,52 @@ public class SMBResource extends ResourceSupport implements Resource {
 			throw new IOException(e); // for cfcatch type="java.io.IOException"
 		}
 		finally {
+			invalidate();
 			provider.unlock(this);
 		}
 	}
 
+	@Override
+	public void moveTo(Resource dest) throws IOException {
+		if (dest instanceof SMBResource && _renameDirectory(this, (SMBResource) dest)) return;
+		super.moveTo(dest);
+	}
+
+	/**
+	 * moves a directory with a single rename if source and destination are on the same share, the
+	 * recursive move of ResourceSupport is only used as a fallback
+	 */
+	private static boolean _renameDirectory(SMBResource src, SMBResource dest) throws IOException {
+		if (src.provider != dest.provider || !src.isDirectory() || dest.exists()) return false;
+		// handles without trailing slash, the target name of a rename must not end with a separator
+		SmbResource srcFile = src._getFile(src._calculatePath(src.getInnerPath()).replaceFirst("/+$", ""));
+		SmbResource destFile = dest._getFile(dest._calculatePath(dest.getInnerPath()).replaceFirst("/+$", ""));
+		if (srcFile == null || destFile == null) return false;
+		if (srcFile.getContext() != destFile.getContext()) return false;
+		SmbResourceLocator srcLocator = srcFile.getLocator();
+		SmbResourceLocator destLocator = destFile.getLocator();
+		if (!srcLocator.getServer().equalsIgnoreCase(destLocator.getServer()) || srcLocator.getPort() != destLocator.getPort()
+				|| srcLocator.getShare() == null || !srcLocator.getShare().equalsIgnoreCase(destLocator.getShare())) {
+			return false;
+		}
+
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			srcFile.renameTo(destFile);
+			failed = false;
+		}
+		catch (CIFSException e) {
+			return false; // nothing was moved, let the recursive move try it
+		}
+		finally {
+			src._record(SMBMetrics.Operation.RENAME, start, failed);
+			src.invalidate();
+			dest.invalidate();
+		}
+		return true;
+	}
+
 	@Override
 	public void moveFile(Resource src, Resource dest) throws IOException {
 		// If both are SMBResource on same provider, use native rename
@@ -595,13 +946,21 @@ public class SMBResource extends ResourceSupport implements Resource {
 			SMBResource smbSrc = (SMBResource) src;
 			SMBResource smbDest = (SMBResource) dest;
 			if (smbSrc.provider == smbDest.provider) {
+				long start = System.nanoTime();
+				boolean failed = true;
 				try {
 					smbSrc._file().renameTo(smbDest._file());
+					failed = false;
 					return;
 				}
 				catch (CIFSException e) {
 					throw new IOException(e);
 				}
+				finally {
+					smbSrc._record(SMBMetrics.Operation.RENAME, start, failed);
+					smbSrc.invalidate();
+					smbDest.invalidate();
+				}
 			}
 		}
 		// Fallback: copy then delete
@@ -611,15 +970,216 @@ public class SMBResource extends ResourceSupport implements Resource {
 	}
 
 	@Override
-	public boolean getAttribute(short attribute) {
+	public void copyTo(Resource res, boolean append) throws IOException {
+		if (!append && res instanceof SMBResource && _copyServerSide(this, (SMBResource) res)) return;
+		if (!append && _isLocal(res) && provider.getRangeDownloadThreshold() > 0 && isFile() && length() >= provider.getRangeDownloadThreshold()) {
+			engine.getResourceUtil().checkGetOutputStreamOK(res);
+			download(new File(res.getAbsolutePath()));
+			return;
+		}
+		super.copyTo(res, append);
+	}
+
+	@Override
+	public void copyFrom(Resource res, boolean append) throws IOException {
+		if (!append && res instanceof SMBResource && _copyServerSide((SMBResource) res, this)) return;
+		super.copyFrom(res, append);
+	}
+
+	/**
+	 * downloads this file to a local file, the file is split into ranges that are fetched in parallel,
+	 * failed ranges are tried again as configured with the provider argument "range-download-retries"
+	 */
+	public void download(File target) throws IOException {
+		createDownload(target, provider.getRangeDownloadSize()).download(provider, provider.getRangeDownloadRetries());
+	}
+
+	/**
+	 * prepares a range download of this file to a local file, use it directly to control retries or to
+	 * resume a download that failed
+	 */
+	public SMBRangeDownload createDownload(File target, long rangeSize) throws IOException {
+		SmbResource file = _file();
+		if (file == null || !isFile()) throw new IOException("[" + getPath() + "] is not a file");
+		return new SMBRangeDownload(file, target, rangeSize);
+	}
+
+	private static boolean _isLocal(Resource res) {
+		return res.getResourceProvider() != null && "file".equalsIgnoreCase(res.getResourceProvider().getScheme());
+	}
+
+	/**
+	 * copies a file between two resources on the same server and session without passing the data
+	 * through this JVM, jcifs uses SMB2 server side copy (copy-chunk) and falls back to copying between
+	 * the two handles if the server does not support it.
+	 * 
+	 * @return false if the resources do not share server and session, the caller has to stream the
+	 *         data in that case
+	 */
+	private static boolean _copyServerSide(SMBResource src, SMBResource dest) throws IOException {
+		if (src.provider != dest.provider) return false;
+		SmbResource srcFile = src._file();
+		SmbResource destFile = dest._file();
+		if (srcFile == null || destFile == null) return false;
+		if (srcFile.getContext() != destFile.getContext()) return false;
+		SmbResourceLocator srcLocator = srcFile.getLocator();
+		SmbResourceLocator destLocator = destFile.getLocator();
+		if (!srcLocator.getServer().equalsIgnoreCase(destLocator.getServer()) || srcLocator.getPort() != destLocator.getPort()) return false;
+		if (!src.isFile()) return false;
+
+		dest.engine.getResourceUtil().checkGetOutputStreamOK(dest);
+		dest.provider.lock(dest);
 		try {
-			int newAttribute = _lookupAttribute(attribute);
-			return (_file().getAttributes() & newAttribute) != 0;
+			srcFile.copyTo(destFile);
 		}
 		catch (CIFSException e) {
-			return false;
+			throw new IOException(e); // for cfcatch type="java.io.IOException"
+		}
+		finally {
+			dest.invalidate();
+			dest.provider.unlock(dest);
+		}
+		return true;
+	}
+
+	@Override
+	public boolean getAttribute(short attribute) {
+		int newAttribute = _lookupAttribute(attribute);
+		return (_attributes().getAttributes() & newAttribute) != 0;
+	}
+
+	/**
+	 * the largest read jcifs sends in a single request, the receive buffer also caps the read size
+	 * negotiated with the server
+	 */
+	private static int _maxReadSize(SmbResource file) {
+		return file.getContext().getConfig().getReceiveBufferSize() - 70; // minus the header of the response
+	}
+
+	/**
+	 * reads as much as fits into one read request right away, if the end of the file is reached the
+	 * whole file is in memory and the handle is closed. A read can return less than requested before the
+	 * end of the file, so only -1 counts as the end.
+	 */
+	private InputStream _openSmall(SmbResource file) throws IOException {
+		InputStream is = _openInputStream(file);
+		try {
+			byte[] buffer = new byte[_maxReadSize(file)];
+			int len = 0;
+			while (len < buffer.length) {
+				int n = is.read(buffer, len, buffer.length - len);
+				if (n == -1) {
+					is.close();
+					return new ByteArrayInputStream(buffer, 0, len);
+				}
+				len += n;
+			}
+			return new SequenceInputStream(new ByteArrayInputStream(buffer), is);
+		}
+		catch (IOException e) {
+			try {
+				is.close();
+			}
+			catch (IOException ioe) {
+				e.addSuppressed(ioe);
+			}
+			throw e;
+		}
+	}
+
+	private InputStream _openInputStream(SmbResource file) throws CIFSException {
+		SMBMetrics.Recorder recorder = recorder();
+		if (recorder == null) return file.openInputStream();
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			InputStream is = SMBMetrics.meter(file.openInputStream(), recorder);
+			failed = false;
+			return is;
+		}
+		finally {
+			recorder.record(SMBMetrics.Operation.OPEN, start, failed, 0);
+		}
+	}
+
+	private OutputStream _openOutputStream(SmbResource file, boolean append) throws CIFSException {
+		SMBMetrics.Recorder recorder = recorder();
+		if (recorder == null) return file.openOutputStream(append);
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			OutputStream os = SMBMetrics.meter(file.openOutputStream(append), recorder);
+			failed = false;
+			return os;
+		}
+		finally {
+			recorder.record(SMBMetrics.Operation.OPEN, start, failed, 0);
+		}
+	}
+
+	private SmbRandomAccess _openRandomAccess(String mode) throws CIFSException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			SmbRandomAccess handle = _file().openRandomAccess(mode, "r".equals(mode) ? SmbConstants.DEFAULT_SHARING : provider.getWriteSharing());
+			failed = false;
+			return handle;
+		}
+		finally {
+			_record(SMBMetrics.Operation.OPEN, start, failed);
 		}
+	}
+
+	/**
+	 * receives the operations of this resource, the stats of its share plus the slow operation log,
+	 * null if the provider records neither
+	 */
+	SMBMetrics.Recorder recorder() {
+		if (provider.getSlowLog() == null) return _metrics();
+		SMBMetrics.Recorder r = slowRecorder;
+		if (r == null) {
+			slowRecorder = r = (op, start, failed, bytes) -> {
+				SMBMetrics.Share metrics = _metrics();
+				if (metrics != null) metrics.record(op, start, failed, bytes);
+				SMBSlowLog slowLog = provider.getSlowLog();
+				if (slowLog != null) slowLog.record(op, _logPath(), start, failed, bytes);
+			};
+		}
+		return r;
+	}
+
+	/**
+	 * path without credentials
+	 */
+	private String _logPath() {
+		String p = logPath;
+		if (p == null) logPath = p = SMBResourceProvider.stripUserInfo(_calculatePath(getInnerPath()));
+		return p;
+	}
+
+	/**
+	 * stats of the share of this resource, null if the provider does not record metrics
+	 */
+	private SMBMetrics.Share _metrics() {
+		SMBMetrics metrics = provider.getMetrics();
+		if (metrics == null) return null;
+		SMBMetrics.Share s = share;
+		if (s == null) {
+			SmbResource file = _file();
+			if (file == null) return null;
+			SmbResourceLocator locator = file.getLocator();
+			share = s = metrics.getShare(locator.getServer(), locator.getShare());
+		}
+		return s;
+	}
+
+	private void _record(SMBMetrics.Operation op, long start, boolean failed) {
+		SMBMetrics.Recorder recorder = recorder();
+		if (recorder != null) recorder.record(op, start, failed, 0);
+	}
 
+	private static int _maxWriteSize(SmbResource file) {
+		return file.getContext().getConfig().getSendBufferSize() - 70; // minus the header of the request
 	}
 
 	public SmbResource getSmbFile() {
@@ -642,4 +1202,18 @@ public class SMBResource extends ResourceSupport implements Resource {
 		return result;
 	}
 
-}
\ No newline at end of file
+	private static final class Snapshot {
+
+		private final SMBFileAttributes attributes;
+		private final String key;
+		private final long version;
+		private final long loaded;
+
+		private Snapshot(SMBFileAttributes attributes, String key, long version, long loaded) {
+			this.attributes = attributes;
+			this.key = key;
+			this.version = version;
+			this.loaded = loaded;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import org.codelibs.jcifs.smb.CloseableIterator;
+import org.codelibs.jcifs.smb.SmbResource;
+
+import lucee.commons.io.res.Resource;
+import lucee.commons.io.res.filter.ResourceFilter;
+import lucee.commons.io.res.filter.ResourceNameFilter;
+
+/**
+ * Iterator over the children of a SMB directory, the entries are read from the server while
+ * iterating, so memory stays flat and the caller can stop early. Has to be closed when not iterated
+ * to the end.
+ */
+public class SMBResourceIterator implements Iterator<Resource>, AutoCloseable {
+
+	private final SMBResource parent;
+	private final CloseableIterator<SmbResource> children;
+	private final Function<SmbResource, Resource> factory;
+	private final ResourceNameFilter nameFilter;
+	private final ResourceFilter filter;
+	private Resource next;
+	private boolean closed;
+
+	public SMBResourceIterator(SMBResource parent, CloseableIterator<SmbResource> children, Function<SmbResource, Resource> factory, ResourceNameFilter nameFilter,
+			ResourceFilter filter) {
+		this.parent = parent;
+		this.children = children;
+		this.factory = factory;
+		this.nameFilter = nameFilter;
+		this.filter = filter;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && !closed && children.hasNext()) {
+			Resource res = factory.apply(children.next());
+
+			// apply filters
+			if (nameFilter != null && !nameFilter.accept(parent, res.getName())) continue;
+			if (filter != null && !filter.accept(res)) continue;
+
+			next = res;
+		}
+		if (next == null && !closed) {
+			// end of the listing, release the search handle right away
+			try {
+				close();
+			}
+			catch (IOException e) {
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public Resource next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		Resource res = next;
+		next = null;
+		return res;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		children.close();
+	}
+}
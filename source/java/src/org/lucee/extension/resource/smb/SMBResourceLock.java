@@ -0,0 +1,171 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock manager with one lock per path, so only operations on the same path wait for each other. A
+ * lock is owned by the thread that acquired it and reentrant for that thread. Only the owner releases
+ * it, a stream closed by another thread than the one opening it passes the owner it remembered.
+ */
+public class SMBResourceLock {
+
+	private final Map<String, Holder> holders = new ConcurrentHashMap<String, Holder>();
+	private final long timeout;
+	private final LongAdder waits = new LongAdder();
+	private final LongAdder waitTime = new LongAdder();
+	private final LongAccumulator maxWaitTime = new LongAccumulator(Math::max, 0);
+	private final LongAdder timeouts = new LongAdder();
+
+	public SMBResourceLock(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public void lock(String key) throws IOException {
+		Thread current = Thread.currentThread();
+		long start = 0;
+		while (true) {
+			Holder holder = holders.computeIfAbsent(key, k -> new Holder());
+			synchronized (holder) {
+				if (holder.released) continue; // released while we got it, get a new one
+				if (holder.owner == null || holder.owner == current) {
+					holder.owner = current;
+					holder.count++;
+					if (start != 0) _recordWait(System.nanoTime() - start);
+					return;
+				}
+				if (start == 0) start = System.nanoTime();
+				_wait(holder, key, start);
+			}
+		}
+	}
+
+	/**
+	 * releases the lock held by the current thread, ignored if another thread holds it
+	 */
+	public void unlock(String key) {
+		unlock(key, Thread.currentThread());
+	}
+
+	/**
+	 * releases the lock held by the given thread, ignored if another thread holds it
+	 */
+	public void unlock(String key, Thread owner) {
+		Holder holder = holders.get(key);
+		if (holder == null) return;
+		synchronized (holder) {
+			if (holder.owner == null || holder.owner != owner) return;
+			if (--holder.count > 0) return;
+			holder.owner = null;
+			holder.count = 0;
+			holder.released = true;
+			holders.remove(key, holder);
+			holder.notifyAll();
+		}
+	}
+
+	/**
+	 * waits until no other thread holds the lock for the given key, without acquiring it
+	 */
+	public void read(String key) throws IOException {
+		Thread current = Thread.currentThread();
+		long start = 0;
+		while (true) {
+			Holder holder = holders.get(key);
+			if (holder == null) break;
+			synchronized (holder) {
+				if (holder.released || holder.owner == null || holder.owner == current) break;
+				if (start == 0) start = System.nanoTime();
+				_wait(holder, key, start);
+			}
+		}
+		if (start != 0) _recordWait(System.nanoTime() - start);
+	}
+
+	private void _wait(Holder holder, String key, long start) throws IOException {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - start);
+		if (remaining <= 0) {
+			_recordWait(System.nanoTime() - start);
+			timeouts.increment();
+			throw new IOException("timeout [" + timeout + " ms] expired while waiting to acquire the lock for [" + key + "]");
+		}
+		try {
+			TimeUnit.NANOSECONDS.timedWait(holder, remaining);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting to acquire the lock for [" + key + "]", e);
+		}
+	}
+
+	private void _recordWait(long nanos) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		waits.increment();
+		waitTime.add(millis);
+		maxWaitTime.accumulate(millis);
+	}
+
+	/**
+	 * number of lock requests that had to wait for another thread
+	 */
+	public long getWaitCount() {
+		return waits.sum();
+	}
+
+	/**
+	 * total time in milliseconds spent waiting for locks
+	 */
+	public long getWaitTime() {
+		return waitTime.sum();
+	}
+
+	/**
+	 * longest time in milliseconds a single lock request waited
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * number of paths currently locked
+	 */
+	public int size() {
+		return holders.size();
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	private static final class Holder {
+		private Thread owner;
+		private int count;
+		private boolean released;
+	}
+}
@@ -22,14 +22,17 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import lucee.commons.io.res.Resource;
+import lucee.commons.io.res.ResourceProvider;
 
 /**
- * OutputStream wrapper that unlocks the resource when closed
+ * OutputStream wrapper that unlocks the resource and drops its cached metadata when closed
  */
 public class SMBResourceOutputStream extends OutputStream {
 
 	private final Resource res;
 	private final OutputStream os;
+	// the thread holding the lock, the stream may be closed by another one
+	private final Thread owner = Thread.currentThread();
 
 	public SMBResourceOutputStream(Resource res, OutputStream os) {
 		this.res = res;
@@ -47,7 +50,10 @@ public class SMBResourceOutputStream extends OutputStream {
 			os.close();
 		}
 		finally {
-			res.getResourceProvider().unlock(res);
+			if (res instanceof SMBResource) ((SMBResource) res).invalidate();
+			ResourceProvider provider = res.getResourceProvider();
+			if (provider instanceof SMBResourceProvider) ((SMBResourceProvider) provider).unlock(res, owner);
+			else provider.unlock(res);
 		}
 	}
 
@@ -18,36 +18,99 @@
  **/
 package org.lucee.extension.resource.smb;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
 import java.net.MalformedURLException;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import lucee.loader.engine.CFMLEngineFactory;
 
 import org.codelibs.jcifs.smb.CIFSContext;
 import org.codelibs.jcifs.smb.CIFSException;
+import org.codelibs.jcifs.smb.SmbConstants;
 import org.codelibs.jcifs.smb.SmbResource;
+import org.codelibs.jcifs.smb.SmbResourceLocator;
 import org.codelibs.jcifs.smb.context.BaseContext;
 import org.codelibs.jcifs.smb.config.PropertyConfiguration;
 import org.codelibs.jcifs.smb.impl.NtlmPasswordAuthenticator;
 import org.codelibs.jcifs.smb.impl.SmbFile;
 import lucee.commons.io.res.Resource;
-import lucee.commons.io.res.ResourceLock;
 import lucee.commons.io.res.ResourceProvider;
 import lucee.commons.io.res.Resources;
 
 public class SMBResourceProvider implements ResourceProvider {
 
+	private static final long serialVersionUID = 1L;
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+	private static final Cleaner CLEANER = Cleaner.create();
+	// registration of every metrics MBean, to only unregister a name the provider still owns
+	private static final Map<ObjectName, Object> METRICS_OWNERS = new HashMap<ObjectName, Object>();
+
 	private String scheme = "smb";
 	private Map<String, String> args;
 	private final static String ENCRYPTED_PREFIX = "$smb-enc$";
 	private final static Charset UTF8 = Charset.forName("UTF-8");
 	private int lockTimeout = 20000;
-	private ResourceLock lock;
+	private SMBResourceLock lock = new SMBResourceLock(lockTimeout);
+	private boolean shareModeLocking = false;
 	private CIFSContext baseContext;
+	private final Map<String, CIFSContext> contexts = new ConcurrentHashMap<String, CIFSContext>();
+	private final Map<String, Set<String>> servers = new ConcurrentHashMap<String, Set<String>>();
+	private int parallelism = 8;
+	private int readAheadWindow = 0;
+	private int readAheadChunkSize = 0;
+	private int writeBehindWindow = 0;
+	private int writeBehindChunkSize = 0;
+	private long rangeDownloadThreshold = 0;
+	private long rangeDownloadSize = 8L * 1024 * 1024;
+	private int rangeDownloadRetries = 3;
+	private int channelBlockSize = 64 * 1024;
+	private int channelCacheBlocks = 0;
+	private SMBContentCache contentCache;
+	private SMBDiskCache diskCache;
+	private long attributeFreshness = 1000;
+	private boolean smallFileFastPath = true;
+	private final SMBMetrics metrics = new SMBMetrics();
+	private boolean metricsEnabled = true;
+	private transient ObjectName metricsName;
+	private transient Cleaner.Cleanable metricsRegistration;
+	private final int instance = INSTANCES.incrementAndGet();
+	private SMBSlowLog slowLog;
+	private final SMBModifications modifications = new SMBModifications(1000, 10000);
+	private ExecutorService executor;
+	private ThreadPoolExecutor bulkExecutor;
+	private ThreadPoolExecutor watchExecutor;
+	private int maxWatches = 200;
+	private volatile UnaryOperator<SmbResource> fileDecorator;
+	private SMBCache<SMBFileAttributes> statCache = new SMBCache<SMBFileAttributes>(0, 0);
+	private SMBCache<Boolean> notFoundCache = new SMBCache<Boolean>(0, 0);
+	private SMBCache<Boolean> writableCache = new SMBCache<Boolean>(60000, 1000);
 
 	@Override
 	public ResourceProvider init(String scheme, Map arguments) {
@@ -74,9 +137,84 @@ public class SMBResourceProvider implements ResourceProvider {
 			}
 		}
 
+		lock = new SMBResourceLock(lockTimeout);
+		// lock-mode, "share" leaves the locking to the share modes of the SMB server
+		if (arguments != null) shareModeLocking = "share".equalsIgnoreCase((String) arguments.get("lock-mode"));
+
+		// stat-cache-ttl/stat-cache-size, metadata cache, disabled by default
+		statCache = new SMBCache<SMBFileAttributes>(_toLong(arguments, "stat-cache-ttl", 0), (int) _toLong(arguments, "stat-cache-size", 10000));
+		// not-found-cache-ttl/not-found-cache-size, remembers paths that do not exist, disabled by default
+		notFoundCache = new SMBCache<Boolean>(_toLong(arguments, "not-found-cache-ttl", 0), (int) _toLong(arguments, "not-found-cache-size", 1000));
+		// writable-cache-ttl, result of the write probe on share roots
+		writableCache = new SMBCache<Boolean>(_toLong(arguments, "writable-cache-ttl", 60000), 1000);
+		// parallelism, max concurrent requests of a single bulk operation
+		parallelism = Math.max(1, (int) _toLong(arguments, "parallelism", parallelism));
+		// read-ahead-window/read-ahead-chunk-size, reads kept in flight by input streams, disabled by default
+		readAheadWindow = (int) _toLong(arguments, "read-ahead-window", 0);
+		readAheadChunkSize = (int) _toLong(arguments, "read-ahead-chunk-size", 0);
+		// write-behind-window/write-behind-chunk-size, writes kept in flight by output streams, disabled by default
+		writeBehindWindow = (int) _toLong(arguments, "write-behind-window", 0);
+		writeBehindChunkSize = (int) _toLong(arguments, "write-behind-chunk-size", 0);
+		// range-download-threshold, files of at least this size are copied to local resources in parallel ranges, disabled by default
+		rangeDownloadThreshold = _toLong(arguments, "range-download-threshold", 0);
+		rangeDownloadSize = _toLong(arguments, "range-download-size", 8L * 1024 * 1024);
+		if (rangeDownloadSize <= 0) rangeDownloadSize = 8L * 1024 * 1024;
+		rangeDownloadRetries = (int) _toLong(arguments, "range-download-retries", 3);
+		// channel-block-size/channel-cache-blocks, block cache of read only channels, disabled by default
+		channelBlockSize = (int) _toLong(arguments, "channel-block-size", 64 * 1024);
+		channelCacheBlocks = (int) _toLong(arguments, "channel-cache-blocks", 0);
+		// max-watches, max number of directories watched at the same time, each holds a thread
+		maxWatches = Math.max(1, (int) _toLong(arguments, "max-watches", 200));
+		// content-cache-size, bytes of small files kept in memory while their directory is watched, disabled by default
+		if (contentCache != null) contentCache.clear();
+		long contentCacheSize = _toLong(arguments, "content-cache-size", 0);
+		contentCache = contentCacheSize > 0 ? new SMBContentCache(this, contentCacheSize, _toLong(arguments, "content-cache-max-file-size", 1024 * 1024),
+				(int) _toLong(arguments, "content-cache-watches", 100)) : null;
+		// metrics, operation counters and latencies published as MBean, enabled by default
+		if (arguments != null) metricsEnabled = !"false".equalsIgnoreCase((String) arguments.get("metrics"));
+		String metricsKey = arguments == null ? null : (String) arguments.get("metrics-name");
+		_registerMetrics(this.scheme, metricsKey == null || metricsKey.trim().isEmpty() ? null : metricsKey.trim());
+		// slow-operation-threshold, operations taking longer (ms) are kept and logged, disabled by default
+		long slowThreshold = _toLong(arguments, "slow-operation-threshold", 0);
+		String slowLogName = arguments == null ? null : (String) arguments.get("slow-operation-log");
+		if (slowLogName == null) slowLogName = "application";
+		slowLog = slowThreshold > 0
+				? new SMBSlowLog(slowThreshold, (int) _toLong(arguments, "slow-operation-buffer-size", 100), slowLogName.trim().isEmpty() ? null : slowLogName.trim())
+				: null;
+		// small-file-fast-path, files that fit into one request are read and written with one read or write request
+		if (arguments != null) smallFileFastPath = !"false".equalsIgnoreCase((String) arguments.get("small-file-fast-path"));
+		// attribute-freshness, milliseconds a resource reuses its own metadata snapshot
+		attributeFreshness = _toLong(arguments, "attribute-freshness", 1000);
+		modifications.setWindow(attributeFreshness);
+		// disk-cache-directory, local copies of remote files, disabled by default
+		if (diskCache != null) diskCache.close();
+		diskCache = null;
+		String diskCacheDirectory = arguments == null ? null : (String) arguments.get("disk-cache-directory");
+		if (diskCacheDirectory != null && !diskCacheDirectory.trim().isEmpty()) {
+			try {
+				diskCache = new SMBDiskCache(new File(diskCacheDirectory.trim()), _toLong(arguments, "disk-cache-size", 1024L * 1024 * 1024),
+						_toLong(arguments, "disk-cache-validation-interval", 0));
+			}
+			catch (IOException e) {
+				// no cache is better than no provider, reads go to the server
+			}
+		}
+
 		return this;
 	}
 
+	private static long _toLong(Map arguments, String name, long defaultValue) {
+		if (arguments == null) return defaultValue;
+		String str = (String) arguments.get(name);
+		if (str == null) return defaultValue;
+		try {
+			return Long.parseLong(str.trim());
+		}
+		catch (Exception e) {
+			return defaultValue;
+		}
+	}
+
 	private CIFSContext _createContext(Map arguments) throws CIFSException {
 		Properties props = new Properties();
 
@@ -92,6 +230,10 @@ public class SMBResourceProvider implements ResourceProvider {
 			String dfsDisabled = (String) arguments.get("smb.client.dfs.disabled");
 			if (dfsDisabled != null) props.setProperty("jcifs.smb.client.dfs.disabled", dfsDisabled);
 
+			// how long attributes loaded with a file or a directory listing are trusted
+			String attrExpiration = (String) arguments.get("attr-expiration");
+			if (attrExpiration != null) props.setProperty("jcifs.client.attrExpirationPeriod", attrExpiration);
+
 			// Support custom port for testing
 			String port = (String) arguments.get("port");
 			if (port != null) props.setProperty("jcifs.smb.client.port", port);
@@ -125,22 +267,142 @@ public class SMBResourceProvider implements ResourceProvider {
 
 	@Override
 	public void setResources(Resources resources) {
-		lock = resources.createResourceLock(lockTimeout, false);
+		// locks are handled by our own per path lock, see init
 	}
 
 	@Override
 	public void unlock(Resource res) {
-		lock.unlock(res);
+		if (shareModeLocking) return;
+		lock.unlock(_lockKey(res));
+	}
+
+	/**
+	 * releases the lock the given thread holds for the resource, for streams and channels closed by
+	 * another thread than the one opening them
+	 */
+	public void unlock(Resource res, Thread owner) {
+		if (shareModeLocking) return;
+		lock.unlock(_lockKey(res), owner);
 	}
 
 	@Override
 	public void lock(Resource res) throws IOException {
-		lock.lock(res);
+		if (shareModeLocking) return;
+		SMBMetrics.Recorder recorder = res instanceof SMBResource ? ((SMBResource) res).recorder() : null;
+		if (recorder == null) {
+			lock.lock(_lockKey(res));
+			return;
+		}
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			lock.lock(_lockKey(res));
+			failed = false;
+		}
+		finally {
+			recorder.record(SMBMetrics.Operation.LOCK_WAIT, start, failed, 0);
+		}
 	}
 
 	@Override
 	public void read(Resource res) throws IOException {
-		lock.read(res);
+		if (shareModeLocking) return;
+		lock.read(_lockKey(res));
+	}
+
+	/**
+	 * true if the provider leaves the locking to the share modes of the server, see "lock-mode"
+	 */
+	public boolean isShareModeLocking() {
+		return shareModeLocking;
+	}
+
+	/**
+	 * share access of handles opened for writing, with "lock-mode" share other clients may only read
+	 * the file while it is written, like the handle of openOutputStream
+	 */
+	public int getWriteSharing() {
+		return shareModeLocking ? SmbConstants.FILE_SHARE_READ : SmbConstants.DEFAULT_SHARING;
+	}
+
+	public SMBResourceLock getLock() {
+		return lock;
+	}
+
+	/**
+	 * operation counters and latencies, null if disabled with the argument "metrics"
+	 */
+	public SMBMetrics getMetrics() {
+		return metricsEnabled ? metrics : null;
+	}
+
+	/**
+	 * operations that took longer than "slow-operation-threshold", null if not enabled
+	 */
+	public SMBSlowLog getSlowLog() {
+		return slowLog;
+	}
+
+	/**
+	 * without "metrics-name" every provider gets a name of its own, so providers of several web
+	 * contexts do not replace each other. A provider created again with the same "metrics-name" (after
+	 * a reload of the configuration) replaces the MBean of the old one. The MBean is unregistered when
+	 * the provider is garbage collected, unless another provider took over its name.
+	 */
+	private void _registerMetrics(String scheme, String key) {
+		if (metricsRegistration != null) metricsRegistration.clean();
+		metricsRegistration = null;
+		metricsName = null;
+		if (!metricsEnabled) return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName("org.lucee.extension.resource.smb:type=Metrics,scheme=" + ObjectName.quote(String.valueOf(scheme)) + ",name="
+					+ ObjectName.quote(key == null ? scheme + "-" + instance : key));
+			Object owner = new Object();
+			synchronized (METRICS_OWNERS) {
+				if (server.isRegistered(name)) server.unregisterMBean(name);
+				server.registerMBean(metrics, name);
+				METRICS_OWNERS.put(name, owner);
+			}
+			metricsName = name;
+			// the action must not reference this provider
+			metricsRegistration = CLEANER.register(this, () -> {
+				synchronized (METRICS_OWNERS) {
+					if (!METRICS_OWNERS.remove(name, owner)) return;
+					try {
+						if (server.isRegistered(name)) server.unregisterMBean(name);
+					}
+					catch (Exception e) {
+					}
+				}
+			});
+		}
+		catch (Exception e) {
+			// JMX is not essential, the numbers are still available with getMetrics()
+		}
+	}
+
+	/**
+	 * name of the metrics MBean, null if not registered
+	 */
+	public ObjectName getMetricsName() {
+		return metricsName;
+	}
+
+	/**
+	 * locks are per path, independent of the user accessing it
+	 */
+	private static String _lockKey(Resource res) {
+		if (res instanceof SMBResource) return ((SMBResource) res).lockKey();
+		return toCacheKey(stripUserInfo(res.getPath()).replaceFirst("^[^:/]+://", ""), null);
+	}
+
+	/**
+	 * removes the user info (plain or encrypted) in front of the server of a path with or without
+	 * scheme, the encrypted form is only Base64 and can be decoded by anybody
+	 */
+	public static String stripUserInfo(String path) {
+		return path.replaceFirst("^([^:/]+://|/)?[^/]*@", "$1");
 	}
 
 	@Override
@@ -159,22 +421,423 @@ public class SMBResourceProvider implements ResourceProvider {
 	}
 
 	public SmbResource getFile(String path, NtlmPasswordAuthenticator auth) {
+		return getFile(path, auth, auth == null ? "" : toCredentialsKey(auth));
+	}
+
+	/**
+	 * same as {@link #getFile(String, NtlmPasswordAuthenticator)} with the key of the credentials
+	 * calculated before, see {@link #toCredentialsKey(NtlmPasswordAuthenticator)}
+	 */
+	public SmbResource getFile(String path, NtlmPasswordAuthenticator auth, String credentialsKey) {
 		try {
-			CIFSContext ctx = baseContext;
-			if (auth != null) {
-				ctx = baseContext.withCredentials(auth);
-			}
-			return new SmbFile(path, ctx);
+			SmbFile file = new SmbFile(path, _context(credentialsKey, auth));
+			servers.computeIfAbsent(credentialsKey, k -> ConcurrentHashMap.newKeySet()).add(file.getServer());
+			UnaryOperator<SmbResource> decorator = fileDecorator;
+			return decorator == null ? file : decorator.apply(file);
 		}
 		catch (MalformedURLException e) {
 			return null; // null means it is a bad SMBFile
 		}
 	}
 
+	/**
+	 * wraps every handle returned by getFile, used by tests to put a double like SMBLatencyInjector
+	 * between the resources and the server, null removes it
+	 */
+	public void setFileDecorator(UnaryOperator<SmbResource> fileDecorator) {
+		this.fileDecorator = fileDecorator;
+	}
+
+	public UnaryOperator<SmbResource> getFileDecorator() {
+		return fileDecorator;
+	}
+
+	/**
+	 * returns the context for the given credentials, every credential set shares one context and with
+	 * it the SMB sessions of the transport pool
+	 */
+	public CIFSContext getContext(NtlmPasswordAuthenticator auth) {
+		return _context(auth == null ? "" : toCredentialsKey(auth), auth);
+	}
+
+	private CIFSContext _context(String key, NtlmPasswordAuthenticator auth) {
+		if (auth == null) return baseContext;
+		return contexts.computeIfAbsent(key, k -> baseContext.withCredentials(auth));
+	}
+
+	/**
+	 * number of authenticated contexts, one per distinct credential set
+	 */
+	public int getContextCount() {
+		return contexts.size();
+	}
+
+	/**
+	 * number of distinct credential/server combinations used since the provider was initialized, each
+	 * of them needs its own SMB session, the sessions the transport pool holds right now may be fewer
+	 */
+	public int getServerCredentialCount() {
+		int count = 0;
+		for (Set<String> set: servers.values()) {
+			count += set.size();
+		}
+		return count;
+	}
+
+	/**
+	 * key of the context of the credentials, the password is only part of it as a hash. Resources
+	 * calculate it once and pass it to {@link #getFile(String, NtlmPasswordAuthenticator, String)}.
+	 */
+	public static String toCredentialsKey(NtlmPasswordAuthenticator auth) {
+		String password = auth.getPassword();
+		String hash = "";
+		if (password != null) {
+			try {
+				byte[] digest = MessageDigest.getInstance("SHA-256").digest(password.getBytes(UTF8));
+				hash = Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e); // every JVM has SHA-256
+			}
+		}
+		return auth.getUserDomain() + ";" + auth.getUsername() + ":" + hash;
+	}
+
 	public CIFSContext getContext() {
 		return baseContext;
 	}
 
+	/**
+	 * cache for file metadata, keyed by {@link #toCacheKey(SmbResourceLocator, NtlmPasswordAuthenticator)}
+	 */
+	public SMBCache<SMBFileAttributes> getStatCache() {
+		return statCache;
+	}
+
+	/**
+	 * cache for paths that did not exist when last checked, keyed like the stat cache
+	 */
+	public SMBCache<Boolean> getNotFoundCache() {
+		return notFoundCache;
+	}
+
+	/**
+	 * cache for the content of small files, null if not enabled with the argument "content-cache-size"
+	 */
+	public SMBContentCache getContentCache() {
+		return contentCache;
+	}
+
+	/**
+	 * local copies of remote files, null if not enabled with the argument "disk-cache-directory"
+	 */
+	public SMBDiskCache getDiskCache() {
+		return diskCache;
+	}
+
+	/**
+	 * cache for the writability of share roots, keyed like the stat cache
+	 */
+	public SMBCache<Boolean> getWritableCache() {
+		return writableCache;
+	}
+
+	/**
+	 * drops everything cached for the given key, for entries below it (the key may be a directory)
+	 * and for its parent directory, whose listing and last modified date change with it
+	 */
+	public void invalidate(String key) {
+		String parent = _parentCacheKey(key);
+		modifications.modified(key, parent);
+		statCache.removeTree(key);
+		notFoundCache.removeTree(key);
+		if (contentCache != null) contentCache.invalidate(key);
+		if (diskCache != null) diskCache.invalidate(key);
+		if (parent != null) statCache.remove(parent);
+	}
+
+	/**
+	 * modifications made through this provider, a metadata snapshot is outdated by a modification of
+	 * its own path, a path above it or a path directly below it
+	 */
+	public SMBModifications getModifications() {
+		return modifications;
+	}
+
+	/**
+	 * true if files that fit into one read or write request are transferred with a single request
+	 */
+	public boolean isSmallFileFastPath() {
+		return smallFileFastPath;
+	}
+
+	/**
+	 * milliseconds a resource reuses its metadata snapshot, 0 disables the snapshot
+	 */
+	public long getAttributeFreshness() {
+		return attributeFreshness;
+	}
+
+	/**
+	 * creates the key of a file for all caches from its server, port and path, so the same file has the
+	 * same key no matter how its resource was created
+	 */
+	public static String toCacheKey(SmbResourceLocator locator, NtlmPasswordAuthenticator auth) {
+		// jcifs fills in the default port, so "host" and "host:445" are the same key
+		return toCacheKey(String.valueOf(locator.getServer()).concat(":").concat(String.valueOf(locator.getPort())).concat(locator.getURLPath()), auth);
+	}
+
+	/**
+	 * creates a case insensitive key for a path and the user accessing it, the path must not contain
+	 * user info
+	 */
+	public static String toCacheKey(String path, NtlmPasswordAuthenticator auth) {
+		String user = "";
+		if (auth != null) {
+			if (auth.getUserDomain() != null) user = auth.getUserDomain().concat(";");
+			if (auth.getUsername() != null) user = user.concat(auth.getUsername());
+		}
+		path = path.replace('\\', '/').replaceAll("^/+|/+$", "");
+		return user.concat("@").concat(path).toLowerCase();
+	}
+
+	private static String _parentCacheKey(String key) {
+		int index = key.lastIndexOf('/');
+		if (index == -1) return null;
+		return key.substring(0, index);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * number of reads an input stream keeps in flight, 0 or 1 disables the read ahead
+	 */
+	public int getReadAheadWindow() {
+		return readAheadWindow;
+	}
+
+	/**
+	 * bytes per read of the read ahead, 0 uses the max read size negotiated with the server
+	 */
+	public int getReadAheadChunkSize() {
+		return readAheadChunkSize;
+	}
+
+	/**
+	 * number of writes an output stream keeps in flight, 0 or 1 disables the write behind
+	 */
+	public int getWriteBehindWindow() {
+		return writeBehindWindow;
+	}
+
+	/**
+	 * bytes per write of the write behind, 0 uses the max write size negotiated with the server
+	 */
+	public int getWriteBehindChunkSize() {
+		return writeBehindChunkSize;
+	}
+
+	/**
+	 * min size of a file that is copied to a local resource with a range download, 0 disables it
+	 */
+	public long getRangeDownloadThreshold() {
+		return rangeDownloadThreshold;
+	}
+
+	/**
+	 * bytes per range of a range download
+	 */
+	public long getRangeDownloadSize() {
+		return rangeDownloadSize;
+	}
+
+	/**
+	 * how many times the failed ranges of a range download are tried again
+	 */
+	public int getRangeDownloadRetries() {
+		return rangeDownloadRetries;
+	}
+
+	/**
+	 * bytes per block cached by read only channels
+	 */
+	public int getChannelBlockSize() {
+		return channelBlockSize;
+	}
+
+	/**
+	 * number of blocks a read only channel keeps in memory, 0 disables the cache
+	 */
+	public int getChannelCacheBlocks() {
+		return channelCacheBlocks;
+	}
+
+	/**
+	 * shared pool for the worker threads of streams, the threads are daemons and die when idle. Bulk
+	 * operations and watches use bounded pools, see {@link #forEachParallel(List, Action)} and
+	 * {@link #getWatchExecutor()}.
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			AtomicInteger count = new AtomicInteger();
+			executor = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "smb-worker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * pool for the watches of directories, a watch holds its thread for as long as it is active, so at
+	 * most "max-watches" directories can be watched, further watches are rejected
+	 */
+	public synchronized ExecutorService getWatchExecutor() {
+		if (watchExecutor == null) {
+			AtomicInteger count = new AtomicInteger();
+			watchExecutor = new ThreadPoolExecutor(0, maxWatches, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+				Thread t = new Thread(r, "smb-watch-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		// can change with a re-init
+		else if (watchExecutor.getMaximumPoolSize() != maxWatches) watchExecutor.setMaximumPoolSize(maxWatches);
+		return watchExecutor;
+	}
+
+	public int getMaxWatches() {
+		return maxWatches;
+	}
+
+	/**
+	 * bounded pool for the helpers of {@link #forEachParallel(List, Action)}, a few bulk operations
+	 * get helpers at the same time, the others run with fewer threads
+	 */
+	private synchronized ExecutorService _bulkExecutor() {
+		int size = parallelism * 4;
+		if (bulkExecutor == null) {
+			AtomicInteger count = new AtomicInteger();
+			bulkExecutor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+				Thread t = new Thread(r, "smb-bulk-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+			bulkExecutor.allowCoreThreadTimeOut(true);
+		}
+		// parallelism can change with a re-init
+		else if (bulkExecutor.getMaximumPoolSize() != size) {
+			if (size > bulkExecutor.getMaximumPoolSize()) {
+				bulkExecutor.setMaximumPoolSize(size);
+				bulkExecutor.setCorePoolSize(size);
+			}
+			else {
+				bulkExecutor.setCorePoolSize(size);
+				bulkExecutor.setMaximumPoolSize(size);
+			}
+		}
+		return bulkExecutor;
+	}
+
+	/**
+	 * runs the action for all items with up to {@link #getParallelism()} threads. A failing item does not
+	 * stop the others, all failures are collected and returned. The calling thread works on the items
+	 * as well, so the operation completes even if no helper gets a thread of the bounded pool, also
+	 * when it is called by the helper of another operation. If the caller is interrupted, no further
+	 * items are started.
+	 */
+	public <T> List<IOException> forEachParallel(List<T> items, Action<T> action) {
+		ParallelRun<T> run = new ParallelRun<T>(items, action);
+		int threads = Math.min(parallelism, items.size());
+		List<Future<?>> helpers = new ArrayList<Future<?>>(threads);
+		if (threads > 1) {
+			ExecutorService pool = _bulkExecutor();
+			for (int i = 1; i < threads; i++) {
+				helpers.add(pool.submit(run::help));
+			}
+		}
+		run.work();
+		try {
+			if (Thread.interrupted()) throw new InterruptedException();
+			run.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			run.stop = true;
+			run.errors.add(new IOException("interrupted while waiting for parallel SMB operations", e));
+		}
+		// helpers still queued have nothing left to do
+		for (Future<?> future: helpers) {
+			future.cancel(false);
+		}
+		return new ArrayList<IOException>(run.errors);
+	}
+
+	private static class ParallelRun<T> {
+
+		private final List<T> items;
+		private final Action<T> action;
+		private final Queue<IOException> errors = new ConcurrentLinkedQueue<IOException>();
+		private final AtomicInteger next = new AtomicInteger();
+		private volatile boolean stop;
+		// helpers working right now and if the caller is done, guarded by this
+		private int running;
+		private boolean done;
+
+		private ParallelRun(List<T> items, Action<T> action) {
+			this.items = items;
+			this.action = action;
+		}
+
+		private void help() {
+			synchronized (this) {
+				if (done) return;
+				running++;
+			}
+			try {
+				work();
+			}
+			finally {
+				synchronized (this) {
+					running--;
+					notifyAll();
+				}
+			}
+		}
+
+		private void work() {
+			int i;
+			while (!stop && !Thread.currentThread().isInterrupted() && (i = next.getAndIncrement()) < items.size()) {
+				try {
+					action.run(items.get(i));
+				}
+				catch (IOException e) {
+					errors.add(e);
+				}
+				catch (RuntimeException e) {
+					errors.add(new IOException(e));
+				}
+			}
+		}
+
+		/**
+		 * waits for the helpers that started, the ones that did not start yet won't do anything anymore
+		 */
+		private synchronized void await() throws InterruptedException {
+			done = true;
+			while (running > 0) {
+				wait();
+			}
+		}
+	}
+
+	public static interface Action<T> {
+		public void run(T item) throws IOException;
+	}
+
 	public static boolean isEncryptedUserInfo(String userInfo) {
 		if (userInfo == null) return false;
 		return userInfo.startsWith(ENCRYPTED_PREFIX);
@@ -0,0 +1,181 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import lucee.commons.io.log.Log;
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.config.Config;
+
+/**
+ * keeps the last operations that took longer than a threshold in a ring buffer and writes them to
+ * a Lucee log. Paths are recorded without credentials.
+ */
+public class SMBSlowLog {
+
+	private final long threshold;
+	private final Entry[] ring;
+	private final String logName;
+	private final LongAdder count = new LongAdder();
+	private long next;
+
+	/**
+	 * @param thresholdMillis operations taking longer are recorded
+	 * @param size number of operations kept
+	 * @param logName name of the Lucee log the operations are written to, null to only keep them
+	 */
+	public SMBSlowLog(long thresholdMillis, int size, String logName) {
+		this.threshold = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.ring = new Entry[Math.max(1, size)];
+		this.logName = logName;
+	}
+
+	/**
+	 * records the operation if it took longer than the threshold, does nothing (and allocates nothing)
+	 * otherwise
+	 * 
+	 * @param start System.nanoTime() when the operation started
+	 */
+	public void record(SMBMetrics.Operation op, String path, long start, boolean failed, long bytes) {
+		long duration = System.nanoTime() - start;
+		if (duration < threshold) return;
+		Entry entry = new Entry(System.currentTimeMillis(), op.name(), path, TimeUnit.NANOSECONDS.toMillis(duration), bytes, failed, Thread.currentThread().getName());
+		count.increment();
+		synchronized (ring) {
+			ring[(int) (next++ % ring.length)] = entry;
+		}
+		_log(entry);
+	}
+
+	/**
+	 * the recorded operations, the most recent first
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> list = new ArrayList<Entry>(ring.length);
+		synchronized (ring) {
+			for (long i = next - 1; i >= 0 && i >= next - ring.length; i--) {
+				list.add(ring[(int) (i % ring.length)]);
+			}
+		}
+		return list;
+	}
+
+	public void clear() {
+		synchronized (ring) {
+			for (int i = 0; i < ring.length; i++) {
+				ring[i] = null;
+			}
+			next = 0;
+		}
+	}
+
+	/**
+	 * number of slow operations since the provider was created, including those no longer in the buffer
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getThreshold() {
+		return TimeUnit.NANOSECONDS.toMillis(threshold);
+	}
+
+	public int getSize() {
+		return ring.length;
+	}
+
+	private void _log(Entry entry) {
+		if (logName == null) return;
+		try {
+			// worker threads have no config, their operations are only kept in the buffer. The config is
+			// used instead of the page context, which would need the servlet API to compile
+			Config config = CFMLEngineFactory.getInstance().getThreadConfig();
+			if (config == null) return;
+			Log log = config.getLog(logName);
+			if (log != null) log.warn("smb", "slow operation " + entry);
+		}
+		catch (Exception e) {
+			// logging must not break the operation
+		}
+	}
+
+	public static class Entry {
+
+		private final long time;
+		private final String operation;
+		private final String path;
+		private final long duration;
+		private final long bytes;
+		private final boolean failed;
+		private final String thread;
+
+		public Entry(long time, String operation, String path, long duration, long bytes, boolean failed, String thread) {
+			this.time = time;
+			this.operation = operation;
+			this.path = path;
+			this.duration = duration;
+			this.bytes = bytes;
+			this.failed = failed;
+			this.thread = thread;
+		}
+
+		/**
+		 * when the operation ended, in milliseconds since 1970
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * in milliseconds
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public boolean isFailed() {
+			return failed;
+		}
+
+		public String getThread() {
+			return thread;
+		}
+
+		@Override
+		public String toString() {
+			return operation + " [" + path + "] " + duration + "ms" + (bytes > 0 ? " " + bytes + " bytes" : "") + (failed ? " failed" : "") + " thread:" + thread;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.IOException;
+
+/**
+ * receives the changes of a watched directory, called by the thread of the watch, so an
+ * implementation should return quickly. An exception thrown by the listener ends the watch.
+ */
+public interface SMBWatchListener {
+
+	public void onChange(SMBChangeEvent event);
+
+	/**
+	 * called once when the watch ends
+	 * 
+	 * @param error the reason, null if the watch was closed
+	 */
+	public default void onClose(IOException error) {
+	}
+}
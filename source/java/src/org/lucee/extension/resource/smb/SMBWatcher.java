@@ -0,0 +1,208 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.codelibs.jcifs.smb.CIFSException;
+import org.codelibs.jcifs.smb.FileNotifyInformation;
+import org.codelibs.jcifs.smb.SmbWatchHandle;
+
+import lucee.commons.io.res.Resource;
+
+/**
+ * watches a directory with SMB2 change notifications. The changes are passed to a listener or, if
+ * there is none, collected in a queue that is read with {@link #poll(long)} or {@link #take()}. The
+ * metadata and content caches of the provider are invalidated for every path reported, before the
+ * event is delivered.
+ */
+public class SMBWatcher implements AutoCloseable {
+
+	public static final int DEFAULT_FILTER = FileNotifyInformation.FILE_NOTIFY_CHANGE_NAME | FileNotifyInformation.FILE_NOTIFY_CHANGE_SIZE
+			| FileNotifyInformation.FILE_NOTIFY_CHANGE_LAST_WRITE | FileNotifyInformation.FILE_NOTIFY_CHANGE_ATTRIBUTES
+			| FileNotifyInformation.FILE_NOTIFY_CHANGE_CREATION;
+
+	private static final int QUEUE_SIZE = 10000;
+	// jcifs sends the change notify request inside of watch() and gives no signal once it is on the
+	// wire, so the watch only counts as armed a moment after the first call
+	private static final long ARM_DELAY = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private final SMBResourceProvider provider;
+	private final String key;
+	private final SmbWatchHandle handle;
+	private final Function<String, Resource> resolver;
+	private final SMBWatchListener listener;
+	private final BlockingQueue<SMBChangeEvent> queue;
+	private volatile boolean active = true;
+	private volatile IOException error;
+	private volatile boolean started;
+	private volatile long startTime;
+
+	/**
+	 * @param provider provider whose caches are invalidated, can be null
+	 * @param key cache key of the watched directory
+	 * @param resolver returns the resource for a path relative to the directory, can be null
+	 * @param listener receives the changes, if null they are queued
+	 */
+	public SMBWatcher(SMBResourceProvider provider, String key, SmbWatchHandle handle, Function<String, Resource> resolver, SMBWatchListener listener) {
+		this.provider = provider;
+		this.key = key;
+		this.handle = handle;
+		this.resolver = resolver;
+		this.listener = listener;
+		this.queue = listener == null ? new LinkedBlockingQueue<SMBChangeEvent>(QUEUE_SIZE) : null;
+	}
+
+	/**
+	 * starts waiting for changes on a thread of the executor, the watch is closed if the executor has
+	 * no thread left
+	 */
+	public SMBWatcher start(ExecutorService executor) throws IOException {
+		try {
+			executor.submit(this::_run);
+		}
+		catch (RejectedExecutionException e) {
+			close();
+			throw new IOException("too many watched directories, see the provider argument \"max-watches\"", e);
+		}
+		return this;
+	}
+
+	/**
+	 * next change, waits at most the given number of milliseconds. Once the watch has ended, through
+	 * close(), an error or a lost connection, the remaining changes are followed by an event of type
+	 * CLOSED, which is returned by every further call.
+	 * 
+	 * @return null if there was no change in time
+	 */
+	public SMBChangeEvent poll(long timeout) throws InterruptedException {
+		if (queue == null) throw new IllegalStateException("the changes are passed to a listener");
+		return _keepClosed(queue.poll(timeout, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * next change, waits until there is one. Once the watch has ended, the remaining changes are
+	 * followed by an event of type CLOSED, so a waiting thread does not wait forever, see
+	 * {@link #poll(long)}
+	 */
+	public SMBChangeEvent take() throws InterruptedException {
+		if (queue == null) throw new IllegalStateException("the changes are passed to a listener");
+		return _keepClosed(queue.take());
+	}
+
+	private SMBChangeEvent _keepClosed(SMBChangeEvent event) {
+		// the end stays in the queue for the next reader
+		if (event != null && event.getType() == SMBChangeEvent.Type.CLOSED) queue.offer(event);
+		return event;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * true once the server received the first change notify request, changes made before are not
+	 * reported, so nothing read before may be trusted by caches
+	 */
+	public boolean isArmed() {
+		return active && started && System.nanoTime() - startTime >= ARM_DELAY;
+	}
+
+	/**
+	 * reason the watch ended, null if it is active or was closed
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	@Override
+	public void close() {
+		if (!active) return;
+		active = false;
+		try {
+			handle.close();
+		}
+		catch (CIFSException e) {
+		}
+		if (queue != null) _enqueue(new SMBChangeEvent(SMBChangeEvent.Type.CLOSED, "", _resolve("")));
+	}
+
+	private void _run() {
+		try {
+			while (active) {
+				if (!started) {
+					startTime = System.nanoTime();
+					started = true;
+				}
+				List<FileNotifyInformation> changes = handle.watch();
+				if (!active) break;
+				if (changes == null || changes.isEmpty()) {
+					// the server had more changes than fit into the response
+					if (provider != null) provider.invalidate(key);
+					_deliver(new SMBChangeEvent(SMBChangeEvent.Type.OVERFLOW, "", _resolve("")));
+					continue;
+				}
+				for (FileNotifyInformation change: changes) {
+					String name = change.getFileName().replace('\\', '/');
+					if (provider != null) provider.invalidate(key.concat("/").concat(name.toLowerCase()));
+					_deliver(new SMBChangeEvent(SMBChangeEvent.toType(change.getAction()), name, _resolve(name)));
+				}
+			}
+		}
+		catch (IOException e) {
+			if (active) error = e;
+		}
+		catch (RuntimeException e) {
+			if (active) error = new IOException(e);
+		}
+		finally {
+			close();
+			if (listener != null) listener.onClose(error);
+		}
+	}
+
+	private void _deliver(SMBChangeEvent event) {
+		if (listener != null) {
+			listener.onChange(event);
+		}
+		else _enqueue(event);
+	}
+
+	private void _enqueue(SMBChangeEvent event) {
+		// nothing may follow the end of the watch
+		if (!active && event.getType() != SMBChangeEvent.Type.CLOSED) return;
+		if (!queue.offer(event)) {
+			// nobody reads the queue fast enough, tell the reader it missed changes
+			queue.clear();
+			queue.offer(new SMBChangeEvent(SMBChangeEvent.Type.OVERFLOW, "", _resolve("")));
+			queue.offer(event);
+		}
+	}
+
+	private Resource _resolve(String name) {
+		return resolver == null ? null : resolver.apply(name);
+	}
+}
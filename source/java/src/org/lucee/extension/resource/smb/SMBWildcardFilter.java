@@ -0,0 +1,80 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.util.regex.Pattern;
+
+import lucee.commons.io.res.Resource;
+import lucee.commons.io.res.filter.ResourceNameFilter;
+
+/**
+ * Case insensitive name filter for glob patterns like <code>*.pdf</code>, multiple patterns can be
+ * separated by <code>|</code>. A single pattern made of <code>*</code>, <code>?</code> and plain
+ * characters is also sent to the server as SMB wildcard, so a listing only transfers the matching
+ * entries.
+ */
+public class SMBWildcardFilter implements ResourceNameFilter {
+
+	private final String pattern;
+	private final Pattern regex;
+	private final String wildcard;
+
+	public SMBWildcardFilter(String pattern) {
+		this.pattern = pattern;
+		StringBuilder sb = new StringBuilder();
+		boolean simple = !pattern.isEmpty();
+		for (String part: pattern.split("\\|", -1)) {
+			if (sb.length() > 0) sb.append('|');
+			sb.append("(?:");
+			for (char c: part.toCharArray()) {
+				if (c == '*') sb.append(".*");
+				else if (c == '?') sb.append('.');
+				else sb.append(Pattern.quote(String.valueOf(c)));
+			}
+			sb.append(')');
+		}
+		this.regex = Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+		// the server only understands one pattern, the dos wildcards <>" are not globs
+		for (char c: pattern.toCharArray()) {
+			if (c == '|' || c == '<' || c == '>' || c == '"' || c == '/' || c == '\\') simple = false;
+		}
+		this.wildcard = simple ? pattern : null;
+	}
+
+	@Override
+	public boolean accept(Resource parent, String name) {
+		return regex.matcher(name).matches();
+	}
+
+	/**
+	 * the pattern to send to the server, null if the pattern can only be applied on the client
+	 */
+	public String getWildcard() {
+		return wildcard;
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ *
+ * Copyright (c) 2015, Lucee Assosication Switzerland
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either 
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with this library.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ **/
+package org.lucee.extension.resource.smb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.codelibs.jcifs.smb.CIFSException;
+import org.codelibs.jcifs.smb.SmbConstants;
+import org.codelibs.jcifs.smb.SmbRandomAccess;
+import org.codelibs.jcifs.smb.SmbResource;
+
+/**
+ * OutputStream that collects the data in chunks and writes them in the background. Up to
+ * <code>window</code> writes are in flight at the same time, each with its own handle, so a large
+ * upload is not slowed down by one round trip per buffer. A failed write is reported by the next
+ * write, flush() or close().
+ */
+public class SMBWriteBehindOutputStream extends OutputStream {
+
+	private final SmbResource file;
+	private final int chunkSize;
+	private final int window;
+	private final int sharing;
+	private final ExecutorService executor;
+	private final SMBMetrics.Recorder recorder;
+	private final Queue<SmbRandomAccess> handles = new ConcurrentLinkedQueue<SmbRandomAccess>();
+	private final List<SmbRandomAccess> opened = Collections.synchronizedList(new ArrayList<SmbRandomAccess>());
+	private final ArrayDeque<Future<?>> pending = new ArrayDeque<Future<?>>();
+	private byte[] buffer;
+	private int count;
+	private long offset;
+	private IOException error;
+	private boolean closed;
+
+	/**
+	 * @param sharing share access of the handles, without FILE_SHARE_WRITE a single handle is used and
+	 *            only one write is in flight
+	 * @param recorder records the writes, can be null
+	 */
+	public SMBWriteBehindOutputStream(SmbResource file, boolean append, int chunkSize, int window, int sharing, ExecutorService executor, SMBMetrics.Recorder recorder)
+			throws CIFSException {
+		this.file = file;
+		this.chunkSize = chunkSize;
+		this.window = (sharing & SmbConstants.FILE_SHARE_WRITE) == 0 ? 1 : window;
+		this.sharing = sharing;
+		this.executor = executor;
+		this.recorder = recorder;
+		// the first handle is opened right away, so a file we can't write fails here and not later
+		SmbRandomAccess handle = file.openRandomAccess("rw", sharing);
+		opened.add(handle);
+		if (append) offset = handle.length();
+		else handle.setLength(0);
+		handles.offer(handle);
+		this.buffer = new byte[chunkSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		_check();
+		if (count == buffer.length) _submit();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		_check();
+		while (len > 0) {
+			if (count == buffer.length) _submit();
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		_check();
+		_submit();
+		while (!pending.isEmpty()) {
+			_await(pending.poll());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		try {
+			flush();
+		}
+		finally {
+			closed = true;
+			// wait for writes still running after a failure before closing their handles
+			for (Future<?> future: pending) {
+				try {
+					future.get();
+				}
+				catch (Exception e) {
+				}
+			}
+			pending.clear();
+			buffer = null;
+			IOException ioe = null;
+			synchronized (opened) {
+				for (SmbRandomAccess handle: opened) {
+					try {
+						handle.close();
+					}
+					catch (IOException e) {
+						if (ioe == null) ioe = e;
+					}
+				}
+				opened.clear();
+			}
+			if (ioe != null && error == null) throw ioe;
+		}
+	}
+
+	private void _check() throws IOException {
+		if (closed) throw new IOException("stream is closed");
+		if (error != null) throw error;
+	}
+
+	private void _submit() throws IOException {
+		if (count == 0) return;
+		final byte[] data = buffer;
+		final int len = count;
+		final long pos = offset;
+		offset += len;
+		buffer = new byte[chunkSize];
+		count = 0;
+		while (pending.size() >= window) {
+			_await(pending.poll());
+		}
+		pending.add(executor.submit(() -> {
+			_writeChunk(pos, data, len);
+			return null;
+		}));
+	}
+
+	private void _await(Future<?> future) throws IOException {
+		try {
+			future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			error = new InterruptedIOException("interrupted while writing [" + file.getLocator().getURL() + "]");
+			throw error;
+		}
+		catch (ExecutionException e) {
+			error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			throw error;
+		}
+	}
+
+	private void _writeChunk(long pos, byte[] data, int len) throws IOException {
+		SmbRandomAccess handle = handles.poll();
+		if (handle == null) {
+			handle = file.openRandomAccess("rw", sharing);
+			opened.add(handle);
+		}
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			handle.seek(pos);
+			handle.write(data, 0, len);
+			failed = false;
+		}
+		finally {
+			handles.offer(handle);
+			if (recorder != null) recorder.record(SMBMetrics.Operation.WRITE, start, failed, failed ? 0 : len);
+		}
+	}
+}